@@ -19,6 +19,7 @@
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -47,6 +48,9 @@ public abstract class CommonsCompressArchiveResource extends ArchiveResource {
     // not supported for zip
     private int gid, uid;
 
+    // offset of the entry's data inside of the uncompressed archive
+    private long dataOffset = -1;
+
     /**
      * Default constructor.
      */
@@ -126,6 +130,13 @@ public InputStream getInputStream() throws IOException {
         if (isReference()) {
             return ((Resource) getCheckedRef()).getInputStream();
         }
+        if (dataOffset >= 0 && getArchive() instanceof GZipResource) {
+            InputStream in = ((GZipResource) getArchive())
+                .getInputStream(dataOffset);
+            if (in != null) {
+                return new EntryDataInputStream(in, getSize());
+            }
+        }
         final ArchiveInputStream i = getStream();
         ArchiveEntry ae = null;
         while ((ae = i.getNextEntry()) != null) {
@@ -215,6 +226,26 @@ protected void setEntry(ArchiveEntry e) {
         gid = EntryHelper.getGroupId(e);
     }
 
+    /**
+     * Whether the data of the entry is stored as a contiguous block
+     * of {@link #getSize} bytes inside of the archive.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    protected boolean isStoredContiguously() {
+        return false;
+    }
+
+    /**
+     * Records where the data of the entry starts inside of the
+     * uncompressed archive, allows {@link #getInputStream} to skip
+     * the entries in front of it if the archive is a {@link
+     * GZipResource} with an index.
+     */
+    final void setDataOffset(long offset) {
+        dataOffset = isStoredContiguously() ? offset : -1;
+    }
+
     private ArchiveInputStream getStream() throws IOException {
         Resource archive = getArchive();
         ArchiveInputStream s = StreamHelper.getInputStream(factory, archive,
@@ -224,4 +255,57 @@ private ArchiveInputStream getStream() throws IOException {
                                                              .getInputStream()),
                                      getEncoding());
     }
+
+    /**
+     * Provides a limited number of bytes of a stream.
+     */
+    private static class EntryDataInputStream extends FilterInputStream {
+        private long remaining;
+
+        private EntryDataInputStream(InputStream in, long size) {
+            super(in);
+            remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
@@ -109,6 +109,10 @@ protected void fillMapsFromArchive(Resource src, String encoding,
                     continue;
                 }
                 Resource r = builder.buildResource(src, encoding, entry);
+                if (r instanceof CommonsCompressArchiveResource) {
+                    ((CommonsCompressArchiveResource) r)
+                        .setDataOffset(ai.getBytesRead());
+                }
                 String name = entry.getName();
                 if (entry.isDirectory()) {
                     name = trimSeparator(name);
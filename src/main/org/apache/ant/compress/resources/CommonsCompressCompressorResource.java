@@ -97,6 +97,16 @@ public void setDecompressConcatenated(boolean b) {
         }
     }
 
+    /**
+     * Whether the whole resource is extracted if it contains multiple
+     * concatenated streams.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    protected final boolean isDecompressConcatenated() {
+        return decompressConcatenated;
+    }
+
     /**
      * Decompress on the fly.
      * @param in the stream to wrap.
@@ -17,20 +17,226 @@
  */
 package org.apache.ant.compress.resources;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.ant.compress.util.CheckpointingGzipInputStream;
 import org.apache.ant.compress.util.GZipStreamFactory;
+import org.apache.ant.compress.util.GzipIndex;
+import org.apache.ant.compress.util.ParallelGzipInputStream;
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
 
 /**
  * A GZip compressed resource.
  */
 public final class GZipResource extends CommonsCompressCompressorResource {
     private static final String NAME = "GZip";
+    private static final long MEGABYTE = 1024 * 1024;
+    /**
+     * Reading an index that has been stored while only this many
+     * compressed bytes were left is finished so the index becomes
+     * complete, covers the padding after the end of tar archives.
+     */
+    private static final long MAX_UNREAD_FOR_COMPLETION = 64 * 1024;
+
+    private int threads = 1;
+    private boolean index = false;
+    private File indexDir;
+    private long indexSpacing = 8 * MEGABYTE;
+    private GzipIndex loadedIndex;
 
     public GZipResource() {
-        super(NAME, new GZipStreamFactory());
+        super(NAME);
+        setFactory(new Factory());
     }
 
     public GZipResource(ResourceCollection other) {
-        super(NAME, new GZipStreamFactory(), other);
+        super(NAME, other);
+        setFactory(new Factory());
+    }
+
+    /**
+     * Number of threads inflating the members of a gzip file
+     * consisting of several members if decompressConcatenated is
+     * true.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Whether to maintain an index of checkpoints inside of the
+     * compressed data so entries of an archive contained in this
+     * resource can be read without decompressing everything in front
+     * of them.  Only used if the wrapped resource is a file.  Default
+     * is false.
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setIndex(boolean index) {
+        this.index = index;
+    }
+
+    /**
+     * Directory to store index files in, by default the index is
+     * stored next to the compressed file.  Implies index="true".
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setIndexDir(File indexDir) {
+        this.indexDir = indexDir;
+        index = true;
+    }
+
+    /**
+     * Distance between two checkpoints of the index in megabytes of
+     * uncompressed data.  Default is 8.
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setIndexSpacing(int megabytes) {
+        if (megabytes < 1) {
+            throw new BuildException("indexSpacing must be a positive"
+                                     + " number");
+        }
+        indexSpacing = megabytes * MEGABYTE;
+    }
+
+    /**
+     * Provides the uncompressed content starting at the given offset,
+     * using the index to skip over the data in front of it.
+     *
+     * <p>If no index exists, yet, the content is read from the start
+     * and the index is built on the way.</p>
+     *
+     * @return null if this resource doesn't maintain an index
+     * @since Apache Compress Antlib 1.6
+     */
+    public InputStream getInputStream(long uncompressedOffset)
+        throws IOException {
+        File archive = getIndexedFile();
+        if (archive == null) {
+            return null;
+        }
+        GzipIndex idx = getIndex(archive);
+        if (idx != null) {
+            GzipIndex.Checkpoint c = idx.find(uncompressedOffset);
+            if (c != null) {
+                log("reading " + archive + " from the checkpoint at"
+                    + " uncompressed offset " + c.getUncompressedOffset(),
+                    Project.MSG_VERBOSE);
+            }
+            return idx.open(archive, uncompressedOffset);
+        }
+        InputStream in = getInputStream();
+        try {
+            if (IOUtils.skip(in, uncompressedOffset) != uncompressedOffset) {
+                throw new EOFException("offset " + uncompressedOffset
+                                       + " is beyond the end of " + this);
+            }
+        } catch (IOException | RuntimeException ex) {
+            in.close();
+            throw ex;
+        }
+        return in;
+    }
+
+    private File getIndexedFile() {
+        if (!index) {
+            return null;
+        }
+        FileProvider fp = (FileProvider) getResource().as(FileProvider.class);
+        return fp == null ? null : fp.getFile();
+    }
+
+    private synchronized GzipIndex getIndex(File archive) {
+        if (loadedIndex == null
+            || !loadedIndex.matches(archive, isDecompressConcatenated())) {
+            loadedIndex = GzipIndex.load(GzipIndex.getIndexFile(archive,
+                                                                indexDir),
+                                         archive, isDecompressConcatenated());
+        }
+        return loadedIndex;
+    }
+
+    private synchronized void storeIndex(File archive, GzipIndex idx) {
+        GzipIndex old = getIndex(archive);
+        if (old != null && (old.isComplete() || !idx.isComplete())
+            && old.getCheckpoints().size() >= idx.getCheckpoints().size()) {
+            return;
+        }
+        try {
+            idx.store(GzipIndex.getIndexFile(archive, indexDir));
+            loadedIndex = idx;
+        } catch (IOException ex) {
+            // the index is an optimization only
+            log("failed to store index of " + archive + ": " + ex,
+                Project.MSG_VERBOSE);
+        }
+    }
+
+    private class Factory extends GZipStreamFactory {
+        @Override
+        public CompressorInputStream getCompressorStream(InputStream stream,
+                                                         boolean decompressConcatenated)
+            throws IOException {
+            File archive = getIndexedFile();
+            if (archive != null) {
+                GzipIndex idx = getIndex(archive);
+                if (idx == null || !idx.isComplete()) {
+                    return new IndexingStream(stream, archive,
+                                              decompressConcatenated);
+                }
+            }
+            if (threads > 1 && decompressConcatenated) {
+                return new ParallelGzipInputStream(stream, threads);
+            }
+            return super.getCompressorStream(stream, decompressConcatenated);
+        }
+    }
+
+    /**
+     * Records checkpoints while the content is read and stores them
+     * when the stream is closed.
+     */
+    private class IndexingStream extends CheckpointingGzipInputStream {
+        private final File archive;
+        private final boolean decompressConcatenated;
+        private boolean closed = false;
+
+        private IndexingStream(InputStream stream, File archive,
+                               boolean decompressConcatenated) {
+            super(stream, decompressConcatenated, indexSpacing);
+            this.archive = archive;
+            this.decompressConcatenated = decompressConcatenated;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (!isFinished() && archive.length() - getCompressedCount()
+                    <= MAX_UNREAD_FOR_COMPLETION) {
+                    IOUtils.skip(this, Long.MAX_VALUE);
+                }
+                storeIndex(archive,
+                           new GzipIndex(archive, decompressConcatenated,
+                                         isFinished(), getCheckpoints()));
+            } finally {
+                super.close();
+            }
+        }
     }
 }
@@ -31,6 +31,7 @@ public final class TarResource extends CommonsCompressArchiveResource {
 
     private String userName = "";
     private String groupName = "";
+    private boolean contiguous = false;
 
     /**
      * Default constructor.
@@ -116,7 +117,17 @@ protected void setEntry(ArchiveEntry e) {
             TarArchiveEntry te = (TarArchiveEntry) e;
             userName = te.getUserName();
             groupName = te.getGroupName();
+            contiguous = te.isFile() && !te.isSparse();
         }
     }
 
+    /**
+     * Sparse entries are not stored contiguously.
+     * @since Apache Compress Antlib 1.6
+     */
+    @Override
+    protected boolean isStoredContiguously() {
+        return contiguous;
+    }
+
 }
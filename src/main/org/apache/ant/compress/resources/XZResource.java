@@ -17,8 +17,15 @@
  */
 package org.apache.ant.compress.resources;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.ant.compress.util.ParallelXZInputStream;
 import org.apache.ant.compress.util.XZStreamFactory;
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
 
 /**
  * An XZ compressed resource.
@@ -26,12 +33,48 @@
  */
 public final class XZResource extends CommonsCompressCompressorResource {
     private static final String NAME = "XZ";
+    private int threads = 1;
 
     public XZResource() {
-        super(NAME, new XZStreamFactory());
+        super(NAME);
+        setFactory(new Factory());
     }
 
     public XZResource(ResourceCollection other) {
-        super(NAME, new XZStreamFactory(), other);
+        super(NAME, other);
+        setFactory(new Factory());
+    }
+
+    /**
+     * Number of threads decompressing the blocks of an xz file
+     * consisting of several blocks.  Only used if the wrapped
+     * resource is a file.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
+
+    private class Factory extends XZStreamFactory {
+        @Override
+        public CompressorInputStream getCompressorStream(InputStream stream,
+                                                         boolean decompressConcatenated)
+            throws IOException {
+            FileProvider fp = (FileProvider) getResource().as(FileProvider.class);
+            if (threads > 1 && fp != null) {
+                ParallelXZInputStream in =
+                    ParallelXZInputStream.open(fp.getFile(), threads,
+                                               decompressConcatenated);
+                if (in != null) {
+                    stream.close();
+                    return in;
+                }
+            }
+            return super.getCompressorStream(stream, decompressConcatenated);
+        }
     }
 }
@@ -22,15 +22,23 @@
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.StringTokenizer;
 import java.util.zip.ZipException;
 
 import org.apache.ant.compress.resources.ArFileSet;
@@ -43,6 +51,9 @@
 import org.apache.ant.compress.resources.ZipResource;
 import org.apache.ant.compress.util.ArchiveStreamFactory;
 import org.apache.ant.compress.util.EntryHelper;
+import org.apache.ant.compress.util.FileAwareArchiveStreamFactory;
+import org.apache.ant.compress.util.NameFingerprints;
+import org.apache.ant.compress.util.SequentialArchiveReader;
 import org.apache.ant.compress.util.StreamHelper;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
@@ -57,20 +68,16 @@
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.taskdefs.Expand;
 import org.apache.tools.ant.types.ArchiveFileSet;
+import org.apache.tools.ant.types.ArchiveScanner;
 import org.apache.tools.ant.types.EnumeratedAttribute;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
 import org.apache.tools.ant.types.resources.ArchiveResource;
+import org.apache.tools.ant.types.resources.FileProvider;
 import org.apache.tools.ant.types.resources.FileResource;
-import org.apache.tools.ant.types.resources.MappedResource;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
 import org.apache.tools.ant.types.resources.Resources;
-import org.apache.tools.ant.types.resources.Restrict;
-import org.apache.tools.ant.types.resources.selectors.Name;
-import org.apache.tools.ant.types.resources.selectors.Not;
-import org.apache.tools.ant.types.resources.selectors.Or;
 import org.apache.tools.ant.util.FileUtils;
-import org.apache.tools.ant.util.IdentityMapper;
-import org.apache.tools.ant.util.MergingMapper;
 import org.apache.tools.ant.util.ResourceUtils;
 import org.apache.tools.zip.UnixStat;
 
@@ -92,6 +99,12 @@ public abstract class ArchiveBase extends Task {
     private boolean preserveLeadingSlashes = false;
     private Duplicate duplicate = new Duplicate();
     private WhenEmpty emptyBehavior = new WhenEmpty();
+    private boolean streaming = false;
+
+    private Resource keptArchive;
+    private SequentialArchiveReader keptEntries;
+    private File newTarget;
+    private Path replacedTarget;
 
     private static final String NO_SOURCES_MSG = "No sources, nothing to do.";
 
@@ -272,6 +285,21 @@ public void setWhenempty(WhenEmpty we) {
         emptyBehavior = we;
     }
 
+    /**
+     * Whether entries shall be written in the order the resource
+     * collections provide them rather than collecting and sorting all
+     * of them first.
+     *
+     * <p>Only supported in create and force-create mode.  The
+     * resource collections are read a single time, the names of all
+     * entries are kept in a compact form to detect duplicates so
+     * memory still grows with the number of entries.</p>
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setStreaming(boolean b) {
+        streaming = b;
+    }
+
     @Override
     public void execute() {
         validate();
@@ -282,25 +310,33 @@ public void execute() {
             mode.setValue(Mode.FORCE_CREATE);
         }
         Collection sourceResources;
-        try {
-            sourceResources = findSources();
-        } catch (IOException ioex) {
-            throw new BuildException("Failed to read sources", ioex);
+        if (streaming) {
+            sourceResources = new StreamingSources();
+        } else {
+            try {
+                sourceResources = findSources();
+            } catch (IOException ioex) {
+                throw new BuildException("Failed to read sources", ioex);
+            }
         }
-        if (sourceResources.size() == 0) {
+        if (sourceResources.isEmpty()) {
             if (WhenEmpty.SKIP.equals(emptyBehavior.getValue())) {
                 log(NO_SOURCES_MSG, Project.MSG_WARN);
             } else {
                 throw new BuildException(NO_SOURCES_MSG);
             }
+        } else if (streaming) {
+            writeStreamingArchive((StreamingSources) sourceResources);
         } else {
-            File copyOfDest = maybeCopyTarget();
+            boolean inPlace = isUpdatingTarget() && canUpdateInPlace();
+            File copyOfDest = inPlace ? null : maybeCopyTarget();
             Resource destOrCopy = copyOfDest == null
                 ? targetArchive
                 : new FileResource(copyOfDest);
             ArchiveFileSet existingEntries =
                 fileSetBuilder.buildFileSet(destOrCopy);
             existingEntries.setProject(getProject());
+            keptArchive = destOrCopy;
             try {
 
                 List/*<ResourceWithFlags>*/ toAdd
@@ -312,20 +348,176 @@ public void execute() {
                     return;
                 }
 
-                addResourcesToKeep(toAdd, existingEntries, sourceResources);
+                if (inPlace) {
+                    sort(toAdd);
+                    try {
+                        if (updateInPlace(toAdd)) {
+                            return;
+                        }
+                    } catch (IOException ioex) {
+                        throw new BuildException("Failed to update archive",
+                                                 ioex);
+                    }
+                    copyOfDest = maybeCopyTarget();
+                    if (copyOfDest != null) {
+                        keptArchive = new FileResource(copyOfDest);
+                        existingEntries =
+                            fileSetBuilder.buildFileSet(keptArchive);
+                        existingEntries.setProject(getProject());
+                    }
+                }
+
+                // match against the sources that are going to be
+                // added, in update mode entries for sources that are
+                // up-to-date must be kept
+                addResourcesToKeep(toAdd, existingEntries, toAdd);
                 sort(toAdd);
 
                 try {
                     writeArchive(toAdd);
+                    closeKeptEntries();
+                    replaceTarget();
                 } catch (IOException ioex) {
                     throw new BuildException("Failed to write archive", ioex);
                 }
             } finally {
+                closeKeptEntries();
+                keptArchive = null;
                 if (copyOfDest != null) {
                     FILE_UTILS.tryHardToDelete(copyOfDest);
                 }
+                if (newTarget != null) {
+                    if (newTarget.exists()) {
+                        FILE_UTILS.tryHardToDelete(newTarget);
+                    }
+                    newTarget = null;
+                }
+                replacedTarget = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the archive reading the sources only once.
+     *
+     * <p>If the target exists and the mode is "create" the archive
+     * is written to a temporary file while the sources are compared
+     * to the existing entries, the target is only replaced if a
+     * source turns out to be out-of-date.</p>
+     */
+    private void writeStreamingArchive(StreamingSources src) {
+        Resource targetArchive = getDest();
+        try {
+            if (!Mode.FORCE_CREATE.equals(getMode().getValue())) {
+                ArchiveFileSet existingEntries =
+                    fileSetBuilder.buildFileSet(targetArchive);
+                existingEntries.setProject(getProject());
+                src.checkAgainst(indexEntries(existingEntries));
+                writeToTemporaryTarget();
+            }
+            writeArchive(src);
+            if (newTarget != null && !src.isOutOfDate()) {
+                log(targetArchive + " is up-to-date, nothing to do.");
+                return;
+            }
+            replaceTarget();
+        } catch (IOException ioex) {
+            throw new BuildException("Failed to write archive", ioex);
+        } finally {
+            if (newTarget != null) {
+                if (newTarget.exists()) {
+                    FILE_UTILS.tryHardToDelete(newTarget);
+                }
+                newTarget = null;
+            }
+            replacedTarget = null;
+        }
+    }
+
+    private void closeKeptEntries() {
+        if (keptEntries != null) {
+            if (keptEntries.getRewinds() > 0) {
+                log(getDest() + " had to be read "
+                    + (keptEntries.getRewinds() + 1)
+                    + " times as its entries are not sorted.",
+                    Project.MSG_VERBOSE);
             }
+            keptEntries.close();
+            keptEntries = null;
+        }
+    }
+
+    /**
+     * Moves the archive that has been written next to the target
+     * archive in its place.
+     *
+     * <p>The file a symbolic link points to is replaced rather than
+     * the link and the new archive gets the permissions of the old
+     * one.</p>
+     */
+    private void replaceTarget() throws IOException {
+        if (newTarget == null) {
+            return;
         }
+        Path dest = replacedTarget;
+        if (dest == null) {
+            ResourceUtils.copyResource(new FileResource(newTarget),
+                                       getDest());
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(newTarget.toPath(),
+                                          Files.getPosixFilePermissions(dest));
+        } catch (UnsupportedOperationException ex) {
+            // not a POSIX file system
+        }
+        try {
+            Files.move(newTarget.toPath(), dest,
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(newTarget.toPath(), dest,
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+        newTarget = null;
+        replacedTarget = null;
+    }
+
+    /**
+     * Whether the task is going to keep entries of an existing
+     * target archive, i.e. it is in one of the update or replace
+     * modes.
+     */
+    protected boolean isUpdatingTarget() {
+        return !Mode.FORCE_CREATE.equals(getMode().getValue())
+            && !Mode.CREATE.equals(getMode().getValue());
+    }
+
+    /**
+     * Whether the existing target archive can be modified in place
+     * via {@link #updateInPlace} rather than being re-created.
+     *
+     * <p>Only invoked in update or replace modes if the target
+     * exists.  The default implementation returns false.</p>
+     */
+    protected boolean canUpdateInPlace() {
+        return false;
+    }
+
+    /**
+     * Adds the given resources to the existing target archive,
+     * replacing entries of the same name and keeping all other
+     * entries.
+     *
+     * <p>Only invoked if {@link #canUpdateInPlace} returned true.
+     * The default implementation returns false.</p>
+     *
+     * @param src the sorted resources to add
+     * @return false if the archive should be re-created instead
+     */
+    protected boolean updateInPlace(Collection/*<ResourceWithFlags>*/ src)
+        throws IOException {
+        return false;
     }
 
     /**
@@ -350,6 +542,10 @@ protected void validate() throws BuildException {
         if (sources.size() == 0) {
             throw new BuildException("must provide sources");
         }
+        if (streaming && isUpdatingTarget()) {
+            throw new BuildException("streaming is only supported in create"
+                                     + " and force-create mode");
+        }
     }
 
     /**
@@ -404,6 +600,9 @@ && isUpToDate(src, existingEntries)) {
      *
      * <p>Will only ever be invoked if the target exists.</p>
      *
+     * <p>Unless the mode is "update" this returns as soon as the
+     * first out-of-date source has been found.</p>
+     *
      * @param src the resources that have been found as sources, may
      * be modified in "update" mode to remove entries that are up to
      * date
@@ -415,35 +614,53 @@ protected boolean isUpToDate(Collection/*<ResourceWithFlags>*/ src,
                                  ArchiveFileSet existingEntries)
         throws IOException {
 
-        final Resource[] srcResources = new Resource[src.size()];
-        int index = 0;
+        Map<String, Resource> entries = indexEntries(existingEntries);
+        long granularity = FILE_UTILS.getFileTimestampGranularity();
+        boolean update = Mode.UPDATE.equals(getMode().getValue());
+        List/*<ResourceWithFlags>*/ outOfDate =
+            new ArrayList/*<ResourceWithFlags>*/();
         for (Iterator i = src.iterator(); i.hasNext(); ) {
             ResourceWithFlags r = (ResourceWithFlags) i.next();
-            srcResources[index++] =
-                new MappedResource(r.getResource(),
-                                   new MergingMapper(r.getName()));
-        }
-        Resource[] outOfDate = ResourceUtils
-            .selectOutOfDateSources(this, srcResources,
-                                    new IdentityMapper(),
-                                    existingEntries
-                                    .getDirectoryScanner(getProject()));
-        if (outOfDate.length > 0 && Mode.UPDATE.equals(getMode().getValue())) {
-            HashSet<String> oodNames = new HashSet<>();
-            for (int i = 0; i < outOfDate.length; i++) {
-                oodNames.add(outOfDate[i].getName());
-            }
-            List/*<ResourceWithFlags>*/ copy =
-                new LinkedList/*<ResourceWithFlags>*/(src);
-            src.clear();
-            for (Iterator i = copy.iterator(); i.hasNext(); ) {
-                ResourceWithFlags r = (ResourceWithFlags) i.next();
-                if (oodNames.contains(r.getName())) {
-                    src.add(r);
+            Resource entry = entries.get(normalize(r.getName()));
+            if (entry == null
+                || SelectorUtils.isOutOfDate(r.getResource(), entry,
+                                             granularity)) {
+                if (!update) {
+                    return false;
                 }
+                outOfDate.add(r);
             }
         }
-        return outOfDate.length == 0;
+        if (outOfDate.isEmpty()) {
+            return true;
+        }
+        src.clear();
+        src.addAll(outOfDate);
+        return false;
+    }
+
+    /**
+     * Maps the normalized names of all entries of the target archive
+     * to the entries.
+     */
+    private Map<String, Resource> indexEntries(ArchiveFileSet existingEntries) {
+        ArchiveScanner as = (ArchiveScanner)
+            existingEntries.getDirectoryScanner(getProject());
+        Map<String, Resource> entries = new HashMap<>();
+        String[] dirs = as.getIncludedDirectories();
+        for (int i = 0; i < dirs.length; i++) {
+            entries.put(normalize(dirs[i]), as.getResource(dirs[i]));
+        }
+        String[] files = as.getIncludedFiles();
+        for (int i = 0; i < files.length; i++) {
+            entries.put(normalize(files[i]), as.getResource(files[i]));
+        }
+        return entries;
+    }
+
+    private static String normalize(String name) {
+        return name.endsWith("/") ? name.substring(0, name.length() - 1)
+            : name;
     }
 
     /**
@@ -453,8 +670,7 @@ protected boolean isUpToDate(Collection/*<ResourceWithFlags>*/ src,
     private void addResourcesToKeep(Collection/*<ResourceWithFlags>*/ toAdd,
                                     ArchiveFileSet target,
                                     Collection/*<ResourceWithFlags>*/ src) {
-        if (!Mode.FORCE_CREATE.equals(getMode().getValue())
-            && !Mode.CREATE.equals(getMode().getValue())) {
+        if (isUpdatingTarget()) {
             try {
                 toAdd.addAll(findUnmatchedTargets(target, src));
             } catch (IOException ioex) {
@@ -475,25 +691,16 @@ private void addResourcesToKeep(Collection/*<ResourceWithFlags>*/ toAdd,
         List<ResourceWithFlags> l = new ArrayList<>();
         ResourceCollectionFlags rcFlags = getFlags(target);
 
-        Restrict res = new Restrict();
-        res.setProject(getProject());
-        res.add(target);
-
-        Not not = new Not();
-        Or or = new Or();
-        not.add(or);
+        Set<String> names = new HashSet<>();
         for (Iterator i = src.iterator(); i.hasNext(); ) {
             ResourceWithFlags r = (ResourceWithFlags) i.next();
-            Name name = new Name();
-            name.setName(r.getName());
-            or.add(name);
+            names.add(r.getName());
         }
-        res.add(not);
 
-        for (Iterator rs = res.iterator(); rs.hasNext(); ) {
+        for (Iterator rs = target.iterator(); rs.hasNext(); ) {
             Resource r = (Resource) rs.next();
             String name = r.getName();
-            if ("".equals(name) || "/".equals(name)) {
+            if ("".equals(name) || "/".equals(name) || names.contains(name)) {
                 continue;
             }
             if (!isFilesOnly() || !r.isDirectory()) {
@@ -518,45 +725,121 @@ public int compare(Object o1, Object o2) {
             });
     }
 
+    /**
+     * Whether the resource is a directory whose entry has already
+     * been added as parent of an earlier entry.
+     *
+     * <p>This can only happen in streaming mode where directories are
+     * not guaranteed to be processed before their contents.</p>
+     */
+    protected boolean isDirectoryAlreadyAdded(ResourceWithFlags r,
+                                              Set addedDirectories) {
+        return streaming && r.getResource().isDirectory()
+            && addedDirectories.contains(r.getName());
+    }
+
     /**
      * Creates the archive archiving the given resources.
      */
     protected void writeArchive(Collection/*<ResourceWithFlags>*/ src)
         throws IOException {
         ArchiveOutputStream out = null;
-        Set addedDirectories = new HashSet();
         try {
-            String enc = Expand.NATIVE_ENCODING.equals(getEncoding())
-                ? null : getEncoding();
-            out = StreamHelper.getOutputStream(factory, getDest(), enc);
-            if (out == null) {
-                out =
-                    factory.getArchiveStream(new BufferedOutputStream(getDest()
-                                                                      .getOutputStream()),
-                                             enc);
+            out = createArchiveStream();
+            writeEntries(out, src, new HashSet());
+        } finally {
+            FILE_UTILS.close(out);
+        }
+    }
+
+    /**
+     * Writes the given resources to an already opened archive.
+     *
+     * @param addedDirectories names of the directory entries already
+     * present in the archive, will be updated
+     */
+    protected void writeEntries(ArchiveOutputStream out,
+                                Collection/*<ResourceWithFlags>*/ src,
+                                Set addedDirectories)
+        throws IOException {
+        for (Iterator i = src.iterator(); i.hasNext(); ) {
+            ResourceWithFlags r = (ResourceWithFlags) i.next();
+            if (isDirectoryAlreadyAdded(r, addedDirectories)) {
+                continue;
             }
-            for (Iterator i = src.iterator(); i.hasNext(); ) {
-                ResourceWithFlags r = (ResourceWithFlags) i.next();
 
-                if (!isFilesOnly()) {
-                    ensureParentDirs(out, r, addedDirectories);
-                }
+            if (!isFilesOnly()) {
+                ensureParentDirs(out, r, addedDirectories);
+            }
 
-                ArchiveEntry ent = entryBuilder.buildEntry(r);
-                out.putArchiveEntry(ent);
-                if (!r.getResource().isDirectory()) {
-                    try (InputStream in = r.getResource().getInputStream()) {
-                        IOUtils.copy(in, out);
-                    }
-                } else {
-                    addedDirectories.add(r.getName());
-                }
-                out.closeArchiveEntry();
+            ArchiveEntry ent = entryBuilder.buildEntry(r);
+            writeEntry(out, r, ent);
+            if (r.getResource().isDirectory()) {
+                addedDirectories.add(r.getName());
+            }
+        }
+    }
 
+    /**
+     * Opens the stream the archive gets written to.
+     */
+    protected ArchiveOutputStream createArchiveStream() throws IOException {
+        String enc = Expand.NATIVE_ENCODING.equals(getEncoding())
+            ? null : getEncoding();
+        Resource target = newTarget == null ? getDest()
+            : new FileResource(newTarget);
+        ArchiveOutputStream out =
+            StreamHelper.getOutputStream(factory, target, enc);
+        if (out == null) {
+            out =
+                factory.getArchiveStream(new BufferedOutputStream(target
+                                                                  .getOutputStream()),
+                                         enc);
+        }
+        return out;
+    }
+
+    /**
+     * Adds a single entry and - unless the resource is a directory -
+     * its content to the archive.
+     */
+    protected void writeEntry(ArchiveOutputStream out, ResourceWithFlags r,
+                              ArchiveEntry ent)
+        throws IOException {
+        out.putArchiveEntry(ent);
+        if (!r.getResource().isDirectory()) {
+            try (InputStream in = getContent(r)) {
+                IOUtils.copy(in, out);
             }
-        } finally {
-            FILE_UTILS.close(out);
         }
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * Opens the content of a resource that is going to be archived.
+     *
+     * <p>Entries kept from the original archive are read using a
+     * single stream if the archive format can only be read
+     * sequentially.  As the original archive will usually have been
+     * sorted the same way as the entries get written, this merges
+     * the original archive with the new sources in a single
+     * pass.</p>
+     */
+    protected InputStream getContent(ResourceWithFlags r) throws IOException {
+        Resource res = r.getResource();
+        if (keptArchive != null
+            && !(factory instanceof FileAwareArchiveStreamFactory)
+            && res instanceof CommonsCompressArchiveResource
+            && keptArchive.equals(((ArchiveResource) res).getArchive())) {
+            if (keptEntries == null) {
+                keptEntries =
+                    new SequentialArchiveReader(factory, keptArchive,
+                                                ((CommonsCompressArchiveResource) res)
+                                                .getEncoding());
+            }
+            return keptEntries.getInputStream(res.getName());
+        }
+        return res.getInputStream();
     }
 
     /**
@@ -804,14 +1087,26 @@ protected boolean addDuplicate(String name) {
     }
 
     /**
-     * Creates a copy of the target archive in update or recreate mode
-     * because some entries may later be read and archived from it.
+     * Prepares reading the entries to keep from the target archive
+     * while the new archive is written.
+     *
+     * <p>If the target is a file the new archive is written to a
+     * temporary file in the same directory that replaces the target
+     * once it is complete, the target itself is read.  If the target
+     * is a symbolic link, the directory of the file it points to is
+     * used.  Other resources and files with more than one hard link
+     * - which would lose the link if replaced - are copied to a
+     * temporary file which is returned and the target is
+     * overwritten.</p>
      */
     private File maybeCopyTarget() {
         File copyOfDest = null;
         try {
-            if (!Mode.FORCE_CREATE.equals(getMode().getValue())
-                && !Mode.CREATE.equals(getMode().getValue())) {
+            if (isUpdatingTarget()) {
+                if (canReplaceTarget()) {
+                    writeToTemporaryTarget();
+                    return null;
+                }
                 copyOfDest = FILE_UTILS.createTempFile(getTaskName(), ".tmp",
                                                        null, true, false);
                 ResourceUtils.copyResource(getDest(),
@@ -826,6 +1121,46 @@ private File maybeCopyTarget() {
         return copyOfDest;
     }
 
+    /**
+     * Whether the target is a file that can be replaced by renaming
+     * a file written next to it.
+     */
+    private boolean canReplaceTarget() {
+        FileProvider fp = (FileProvider) getDest().as(FileProvider.class);
+        return fp != null && !hasHardLinks(fp.getFile().toPath());
+    }
+
+    /**
+     * Makes the archive get written to a temporary file that replaces
+     * the target once it is complete - next to the target if {@link
+     * #canReplaceTarget}, otherwise the content is copied to the
+     * target.
+     */
+    private void writeToTemporaryTarget() throws IOException {
+        if (canReplaceTarget()) {
+            replacedTarget = ((FileProvider) getDest().as(FileProvider.class))
+                .getFile().toPath().toRealPath();
+            newTarget = FILE_UTILS.createTempFile(getTaskName(), ".tmp",
+                                                  replacedTarget.getParent()
+                                                  .toFile(),
+                                                  false, false);
+        } else {
+            newTarget = FILE_UTILS.createTempFile(getTaskName(), ".tmp",
+                                                  null, false, false);
+        }
+    }
+
+    private static boolean hasHardLinks(Path file) {
+        try {
+            Object links = Files.getAttribute(file, "unix:nlink");
+            return links instanceof Integer && ((Integer) links) > 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException
+                 | IOException ex) {
+            // no way to tell, assume there is only one
+            return false;
+        }
+    }
+
     /**
      * Valid Modes for create/update/replace.
      */
@@ -1115,6 +1450,277 @@ public String getName() {
         }
     }
 
+    /**
+     * Returns the first of the given policies that applies to the
+     * resource or null if there is none.
+     */
+    protected static CompressionPolicy
+        findCompressionPolicy(List<CompressionPolicy> policies,
+                              ResourceWithFlags r) {
+        if (r.getResource().isDirectory()) {
+            return null;
+        }
+        for (CompressionPolicy p : policies) {
+            if (p.matches(r.getName(), r.getResource().getSize())) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Selects compression method and level for the entries whose
+     * names match the patterns and whose size lies within the given
+     * limits.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public static class CompressionPolicy {
+        private String[] includes;
+        private String[] excludes;
+        private long minSize = -1;
+        private long maxSize = -1;
+        private String method;
+        private Integer level;
+
+        /**
+         * Comma or space separated list of patterns of entry names
+         * this policy applies to, by default it applies to all
+         * entries.
+         */
+        public void setIncludes(String patterns) {
+            includes = tokenize(patterns);
+        }
+
+        /**
+         * Comma or space separated list of patterns of entry names
+         * this policy doesn't apply to.
+         */
+        public void setExcludes(String patterns) {
+            excludes = tokenize(patterns);
+        }
+
+        /**
+         * Minimum size in bytes of the entries this policy applies to.
+         */
+        public void setMinSize(long size) {
+            minSize = size;
+        }
+
+        /**
+         * Maximum size in bytes of the entries this policy applies to.
+         */
+        public void setMaxSize(long size) {
+            maxSize = size;
+        }
+
+        /**
+         * The compression method to use, the supported values depend
+         * on the task.
+         */
+        public void setMethod(String method) {
+            this.method = method;
+        }
+
+        /**
+         * The compression level to use.
+         */
+        public void setLevel(int level) {
+            this.level = Integer.valueOf(level);
+        }
+
+        /**
+         * The compression method, may be null.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * The compression level, may be null.
+         */
+        public Integer getLevel() {
+            return level;
+        }
+
+        /**
+         * Whether the policy applies to an entry of the given name
+         * and size.
+         *
+         * @param size the size of the entry's content, -1 if unknown
+         */
+        public boolean matches(String name, long size) {
+            if ((minSize >= 0 && (size < 0 || size < minSize))
+                || (maxSize >= 0 && (size < 0 || size > maxSize))) {
+                return false;
+            }
+            return (includes == null || matchesAny(includes, name))
+                && (excludes == null || !matchesAny(excludes, name));
+        }
+
+        private static boolean matchesAny(String[] patterns, String name) {
+            for (int i = 0; i < patterns.length; i++) {
+                if (SelectorUtils.matchPath(patterns[i], name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String[] tokenize(String patterns) {
+            List<String> l = new ArrayList<>();
+            StringTokenizer st = new StringTokenizer(patterns, ", ");
+            while (st.hasMoreTokens()) {
+                String pattern = st.nextToken().replace('\\', '/');
+                if (pattern.endsWith("/")) {
+                    pattern += "**";
+                }
+                l.add(pattern);
+            }
+            return l.toArray(new String[l.size()]);
+        }
+    }
+
+    /**
+     * The resources to add in streaming mode, they are read from the
+     * resource collections while the archive is written.
+     *
+     * <p>The resource collections are only read once: isEmpty looks
+     * at the first resource, the collection can be iterated over a
+     * single time and size only counts the resources that have been
+     * returned so far.  If existing entries have been provided, the
+     * resources are compared to them while they are returned.</p>
+     */
+    private class StreamingSources
+        extends AbstractCollection/*<ResourceWithFlags>*/ {
+        private final SourceIterator sources = new SourceIterator();
+        private boolean iterated = false;
+        private int count = 0;
+        private Map<String, Resource> existingEntries;
+        private boolean outOfDate = false;
+
+        /**
+         * Compare the sources to the given entries while they are
+         * read.
+         */
+        private void checkAgainst(Map<String, Resource> entries) {
+            existingEntries = entries;
+        }
+
+        /**
+         * Whether a source has been read that has no entry or a
+         * newer timestamp than its entry.
+         */
+        private boolean isOutOfDate() {
+            return outOfDate;
+        }
+
+        @Override
+        public Iterator/*<ResourceWithFlags>*/ iterator() {
+            if (iterated) {
+                throw new IllegalStateException("sources can only be read"
+                                                + " once in streaming"
+                                                + " mode");
+            }
+            iterated = true;
+            final long granularity = FILE_UTILS.getFileTimestampGranularity();
+            return new Iterator/*<ResourceWithFlags>*/() {
+                @Override
+                public boolean hasNext() {
+                    return sources.hasNext();
+                }
+
+                @Override
+                public Object/*ResourceWithFlags*/ next() {
+                    ResourceWithFlags r = (ResourceWithFlags) sources.next();
+                    count++;
+                    if (existingEntries != null && !outOfDate) {
+                        Resource entry =
+                            existingEntries.get(normalize(r.getName()));
+                        outOfDate = entry == null
+                            || SelectorUtils.isOutOfDate(r.getResource(),
+                                                         entry, granularity);
+                    }
+                    return r;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !sources.hasNext();
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * Applies the same rules as findSources to the resources of all
+     * resource collections one resource at a time.
+     */
+    private class SourceIterator
+        implements Iterator/*<ResourceWithFlags>*/ {
+        private final Iterator rcs = sources.iterator();
+        private final NameFingerprints addedNames = new NameFingerprints();
+        private ResourceCollectionFlags rcFlags;
+        private Iterator rs = Collections.emptyIterator();
+        private ResourceWithFlags next;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (rs.hasNext()) {
+                    Resource r = (Resource) rs.next();
+                    if (!isFilesOnly() || !r.isDirectory()) {
+                        ResourceWithFlags rwf;
+                        try {
+                            rwf = new ResourceWithFlags(r, rcFlags,
+                                                        getFlags(r));
+                        } catch (IOException ioex) {
+                            throw new BuildException("Failed to read sources",
+                                                     ioex);
+                        }
+                        String name = rwf.getName();
+                        if (!"".equals(name) && !"/".equals(name)
+                            && (addedNames.add(name) || addDuplicate(name))) {
+                            next = rwf;
+                        }
+                    }
+                } else if (rcs.hasNext()) {
+                    ResourceCollection rc = (ResourceCollection) rcs.next();
+                    rcFlags = getFlags(rc);
+                    rs = rc.iterator();
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Object/*ResourceWithFlags*/ next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ResourceWithFlags r = next;
+            next = null;
+            return r;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * Creates an archive entry for the concrete format.
      */
@@ -19,27 +19,57 @@
 package org.apache.ant.compress.taskdefs;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.ant.compress.util.ArchiveStreamFactory;
+import org.apache.ant.compress.util.BatchedFileWriter;
+import org.apache.ant.compress.util.ChecksumCache;
 import org.apache.ant.compress.util.EntryHelper;
+import org.apache.ant.compress.util.EntrySelection;
+import org.apache.ant.compress.util.ExtractionManifest;
 import org.apache.ant.compress.util.Messages;
+import org.apache.ant.compress.util.NameFingerprints;
+import org.apache.ant.compress.util.ReadAheadInputStream;
+import org.apache.ant.compress.util.SeekableFileInputStream;
 import org.apache.ant.compress.util.StreamHelper;
+import org.apache.ant.compress.util.TransferringInputStream;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Expand;
+import org.apache.tools.ant.types.PatternSet;
 import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
 import org.apache.tools.ant.types.resources.FileResource;
 import org.apache.tools.ant.util.FileNameMapper;
 import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.util.IdentityMapper;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
 
 /**
  * Expand an archive.
@@ -52,6 +82,20 @@
  * <p>File permissions will not be restored on extracted files.</p>
  */
 public abstract class ExpandBase extends Expand {
+    /**
+     * How many small files per writer thread may be waiting to be
+     * written.
+     */
+    private static final int PENDING_WRITES_PER_THREAD = 16;
+
+    /**
+     * Uncompressed entries at least this big are copied from the
+     * archive to the extracted file by FileChannel#transferTo if both
+     * are files, for smaller entries setting up the transfer costs
+     * more than it saves.
+     */
+    protected static final long MIN_TRANSFER_SIZE = 64 * 1024;
+
     private final ArchiveStreamFactory factory;
 
     protected ExpandBase(ArchiveStreamFactory factory) {
@@ -59,6 +103,29 @@ protected ExpandBase(ArchiveStreamFactory factory) {
     }
 
     private boolean skipUnreadable = false;
+    private boolean readAhead = false;
+    private int readAheadBuffers = 4;
+    private int writerThreads = 1;
+    private int smallFileSize = 64 * 1024;
+    private int writerMemory = 32 * 1024 * 1024;
+    private final List<PatternSet> patternsets = new ArrayList<>();
+    private boolean stripAbsolutePathSpec = false;
+    private boolean skipUnchanged = false;
+    private File checksumCache;
+    private ChecksumCache checksums;
+    private boolean useManifest = false;
+    private boolean manifestHash = false;
+    private int parallelism = 1;
+    private boolean fastExtraction = false;
+    private BatchedFileWriter batch;
+    private EntrySelection batchSelection;
+    private File src;
+    private File dest;
+    private boolean overwrite = true;
+    private final List<ResourceCollection> sources = new ArrayList<>();
+    private Map<File, Claim> claims;
+    private final ThreadLocal<ArchiveContext> currentArchive =
+        new InheritableThreadLocal<>();
 
     /**
      * No encoding support in general.
@@ -97,9 +164,578 @@ public boolean getSkipUnreadableEntries() {
         return skipUnreadable;
     }
 
+    /**
+     * Whether to read (and decompress) the archive on a separate
+     * thread while entries are extracted.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setReadAhead(boolean b) {
+        readAhead = b;
+    }
+
+    /**
+     * Number of buffers the separate thread may fill ahead of the
+     * extraction when readAhead is true.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setReadAheadBuffers(int buffers) {
+        if (buffers < 1) {
+            throw new BuildException("readAheadBuffers must be a positive"
+                                     + " number", getLocation());
+        }
+        readAheadBuffers = buffers;
+    }
+
+    /**
+     * Number of threads writing small files while the archive is
+     * read sequentially.  Default is 1 which writes all files on the
+     * task's own thread.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setWriterThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("writerThreads must be a positive"
+                                     + " number", getLocation());
+        }
+        writerThreads = threads;
+    }
+
+    /**
+     * Entries up to this size (in bytes) are handed to the writer
+     * threads, bigger entries are written by the task's own thread.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setSmallFileSize(int size) {
+        if (size < 0) {
+            throw new BuildException("smallFileSize must not be negative",
+                                     getLocation());
+        }
+        smallFileSize = size;
+    }
+
+    /**
+     * Maximum number of bytes held in memory for files waiting to
+     * be written by the writer threads.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setWriterMemory(int bytes) {
+        if (bytes < 1) {
+            throw new BuildException("writerMemory must be a positive"
+                                     + " number", getLocation());
+        }
+        writerMemory = bytes;
+    }
+
+    /**
+     * Whether to leave existing files alone if their size and CRC32
+     * checksum match those of the entry.
+     *
+     * <p>Only applies to formats that store the checksum of an
+     * entry.</p>
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setSkipUnchanged(boolean b) {
+        skipUnchanged = b;
+    }
+
+    /**
+     * File used to remember the checksums of existing files between
+     * builds when skipUnchanged is true.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setChecksumCache(File f) {
+        checksumCache = f;
+    }
+
+    /**
+     * Whether to write a manifest into the destination directory
+     * after an archive that is a file has been expanded and skip the
+     * archive if a manifest of an earlier build says nothing has
+     * changed.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setUseManifest(boolean b) {
+        useManifest = b;
+    }
+
+    /**
+     * Whether the manifest identifies archives by a SHA-256 digest of
+     * their content in addition to size and modification time.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setManifestHash(boolean b) {
+        manifestHash = b;
+    }
+
+    /**
+     * Number of archives to expand concurrently.  Default is 1.
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new BuildException("parallelism must be a positive"
+                                     + " number", getLocation());
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Whether to write files with fewer file system operations.
+     *
+     * <p>Directories are only created once, files are written
+     * through large reusable buffers, and modification times are set after all archives have been
+     * expanded.</p>
+     *
+     * @since Compress Antlib 1.6
+     */
+    public void setFastExtraction(boolean b) {
+        fastExtraction = b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setSrc(File s) {
+        super.setSrc(s);
+        src = s;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setDest(File d) {
+        super.setDest(d);
+        dest = d;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setOverwrite(boolean b) {
+        super.setOverwrite(b);
+        overwrite = b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(ResourceCollection rc) {
+        super.add(rc);
+        sources.add(rc);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void execute() throws BuildException {
+        if (skipUnchanged) {
+            try {
+                checksums = new ChecksumCache(checksumCache);
+            } catch (IOException ex) {
+                throw new BuildException("Failed to read checksum cache "
+                                         + checksumCache, ex, getLocation());
+            }
+        }
+        if (fastExtraction) {
+            batch = new BatchedFileWriter();
+            batchSelection = getSelection();
+        }
+        try {
+            if (parallelism == 1) {
+                super.execute();
+            } else {
+                expandConcurrently();
+            }
+        } finally {
+            if (batch != null) {
+                batch.applyTimestamps(FileUtils.getFileUtils());
+                batch = null;
+                batchSelection = null;
+            }
+            if (checksums != null) {
+                try {
+                    checksums.save();
+                } catch (IOException ex) {
+                    log("Failed to write checksum cache " + checksumCache
+                        + ": " + ex, Project.MSG_WARN);
+                }
+                checksums = null;
+            }
+        }
+    }
+
+    /**
+     * Does what Expand's execute method does but expands up to
+     * parallelism archives at the same time.
+     *
+     * <p>If several archives contain files that are extracted to
+     * the same path, the writes are serialized and the archive that
+     * comes last in the task's order wins, so the result is the same
+     * as when the archives are expanded one after the other.</p>
+     */
+    private void expandConcurrently() {
+        if (src == null && sources.isEmpty()) {
+            throw new BuildException("src attribute and/or resources must"
+                                     + " be specified");
+        }
+        if (dest == null) {
+            throw new BuildException("Dest attribute must be specified");
+        }
+        if (dest.exists() && !dest.isDirectory()) {
+            throw new BuildException("Dest must be a directory.",
+                                     getLocation());
+        }
+        final List<Object> archives = new ArrayList<>();
+        if (src != null) {
+            if (src.isDirectory()) {
+                throw new BuildException("Src must not be a directory."
+                                         + " Use nested filesets instead.",
+                                         getLocation());
+            }
+            if (!src.exists()) {
+                throw new BuildException("src '" + src + "' doesn't exist.");
+            }
+            if (!src.canRead()) {
+                throw new BuildException("src '" + src
+                                         + "' cannot be read.");
+            }
+            archives.add(src);
+        }
+        for (ResourceCollection rc : sources) {
+            for (Resource r : rc) {
+                if (!r.isExists()) {
+                    log("Skipping '" + r.getName()
+                        + "' because it doesn't exist.");
+                    continue;
+                }
+                FileProvider fp = (FileProvider) r.as(FileProvider.class);
+                archives.add(fp != null ? fp.getFile() : r);
+            }
+        }
+        // read files of patternsets before they are used concurrently
+        getSelection();
+
+        claims = new HashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        List<Future<Void>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < archives.size(); i++) {
+                final int index = i;
+                final Object archive = archives.get(i);
+                results.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            currentArchive.set(new ArchiveContext(index));
+                            try {
+                                if (archive instanceof File) {
+                                    expandFile(FileUtils.getFileUtils(),
+                                               (File) archive, dest);
+                                } else {
+                                    expandResource((Resource) archive, dest);
+                                }
+                            } finally {
+                                currentArchive.remove();
+                            }
+                            return null;
+                        }
+                    }));
+            }
+            for (Future<Void> f : results) {
+                awaitExtraction(f);
+            }
+        } catch (IOException ex) {
+            // not thrown by expandFile or expandResource
+            throw new BuildException(ex, getLocation());
+        } finally {
+            pool.shutdownNow();
+            claims = null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addPatternset(PatternSet set) {
+        super.addPatternset(set);
+        patternsets.add(set);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setStripAbsolutePathSpec(boolean b) {
+        super.setStripAbsolutePathSpec(b);
+        stripAbsolutePathSpec = b;
+    }
+
+    /**
+     * The entries selected by nested patternsets or null if there
+     * are no patternsets and all entries are extracted.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected EntrySelection getSelection() {
+        return patternsets.isEmpty() ? null
+            : new EntrySelection(patternsets, getProject(),
+                                 stripAbsolutePathSpec);
+    }
+
+    /**
+     * Whether the archive stream of an archive that is a file may
+     * read from a {@link SeekableFileInputStream} so the data of
+     * entries that are not selected can be seeked over and the data
+     * of big entries can be transferred without copying it.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected boolean canSeekOverEntries() {
+        return false;
+    }
+
+    /**
+     * The number of bytes following the entry's header the archive
+     * stream will skip if the entry's data is not read, -1 if it
+     * isn't known.  The bytes must be the uncompressed content of
+     * the entry.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected long getSeekableDataSize(ArchiveEntry entry) {
+        return -1;
+    }
+
+    /**
+     * The CRC32 checksum of the entry's content if the archive
+     * stores it, -1 otherwise.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected long getEntryCrc(ArchiveEntry entry) {
+        return -1;
+    }
+
+    /**
+     * Whether skipUnchanged is true and the file an entry would be
+     * extracted to already has the size and CRC32 checksum of the
+     * entry.
+     *
+     * @param size size of the entry, -1 if unknown
+     * @param crc checksum of the entry, -1 if unknown
+     * @since Compress Antlib 1.6
+     */
+    protected boolean isUnchanged(FileUtils fileUtils, File dir,
+                                  String entryName, boolean isDirectory,
+                                  long size, long crc, FileNameMapper mapper)
+        throws IOException {
+        if (checksums == null || isDirectory || size < 0 || crc < 0) {
+            return false;
+        }
+        File f = getTargetFile(fileUtils, dir, entryName, mapper);
+        if (!f.isFile() || f.length() != size
+            || checksums.getCrc(f) != crc) {
+            return false;
+        }
+        log("skipping " + entryName + " as it is unchanged.",
+            Project.MSG_VERBOSE);
+        ExtractionManifest manifest = getManifest();
+        if (manifest != null) {
+            manifest.add(f);
+        }
+        return true;
+    }
+
+    /**
+     * The file an entry is extracted to, determined the same way
+     * Ant's Expand task does it.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected File getTargetFile(FileUtils fileUtils, File dir,
+                                 String entryName, FileNameMapper mapper) {
+        String name = entryName;
+        if (stripAbsolutePathSpec && name.length() > 0
+            && (name.charAt(0) == File.separatorChar
+                || name.charAt(0) == '/' || name.charAt(0) == '\\')) {
+            name = name.substring(1);
+        }
+        String[] mappedNames = mapper.mapFileName(name);
+        if (mappedNames == null || mappedNames.length == 0) {
+            mappedNames = new String[] {name};
+        }
+        return fileUtils.resolveFile(dir, mappedNames[0]);
+    }
+
     /** {@inheritDoc} */
     @Override
+    protected void extractFile(FileUtils fileUtils, File srcF, File dir,
+                               InputStream compressedInputStream,
+                               String entryName, Date entryDate,
+                               boolean isDirectory, FileNameMapper mapper)
+        throws IOException {
+        ArchiveContext archive = currentArchive.get();
+        Map<File, Claim> c = claims;
+        if (c == null || archive == null || isDirectory) {
+            writeEntry(fileUtils, srcF, dir, compressedInputStream,
+                       entryName, entryDate, isDirectory, mapper);
+        } else {
+            File f = getTargetFile(fileUtils, dir, entryName, mapper);
+            Claim claim;
+            synchronized (c) {
+                claim = c.get(f);
+                if (claim == null) {
+                    claim = new Claim(archive.index);
+                    c.put(f, claim);
+                }
+            }
+            synchronized (claim) {
+                if (claim.owner != archive.index) {
+                    log(f + " is extracted from more than one archive.",
+                        Project.MSG_VERBOSE);
+                }
+                if (overwrite && claim.owner > archive.index) {
+                    // a later archive has already written the file
+                    return;
+                }
+                claim.owner = Math.max(claim.owner, archive.index);
+                writeEntry(fileUtils, srcF, dir, compressedInputStream,
+                           entryName, entryDate, isDirectory, mapper);
+            }
+        }
+        ExtractionManifest manifest = getManifest();
+        if (manifest != null) {
+            File f = getTargetFile(fileUtils, dir, entryName, mapper);
+            if (f.exists()) {
+                manifest.add(f);
+            }
+        }
+    }
+
+    /**
+     * Does what Expand's extractFile does, using the BatchedFileWriter
+     * if fastExtraction is true.
+     *
+     * <p>Entries whose target may be outside of the destination
+     * directory and targets that are symbolic links are left to
+     * Expand so it applies its own rules.</p>
+     */
+    private void writeEntry(FileUtils fileUtils, File srcF, File dir,
+                            InputStream compressedInputStream,
+                            String entryName, Date entryDate,
+                            boolean isDirectory, FileNameMapper mapper)
+        throws IOException {
+        BatchedFileWriter b = batch;
+        String name = entryName;
+        if (stripAbsolutePathSpec && name.length() > 0
+            && (name.charAt(0) == File.separatorChar
+                || name.charAt(0) == '/' || name.charAt(0) == '\\')) {
+            name = name.substring(1);
+        }
+        File f = b == null ? null
+            : getTargetFile(fileUtils, dir, entryName, mapper);
+        if (f == null || !b.isInside(dir, f)
+            || Files.isSymbolicLink(f.toPath())) {
+            super.extractFile(fileUtils, srcF, dir, compressedInputStream,
+                              entryName, entryDate, isDirectory, mapper);
+            return;
+        }
+        if (batchSelection != null && !batchSelection.selects(entryName)) {
+            log("skipping " + name + " as it is excluded or not included.",
+                Project.MSG_VERBOSE);
+            return;
+        }
+        try {
+            if (!overwrite && f.exists()
+                && b.lastModified(f) >= entryDate.getTime()) {
+                log("Skipping " + f + " as it is up-to-date",
+                    Project.MSG_DEBUG);
+                return;
+            }
+            log("expanding " + name + " to " + f, Project.MSG_VERBOSE);
+            if (isDirectory) {
+                b.mkdirs(f);
+            } else {
+                b.mkdirs(f.getParentFile());
+                b.write(f, compressedInputStream);
+            }
+            b.setLastModified(f, entryDate.getTime());
+        } catch (FileNotFoundException ex) {
+            log("Unable to expand to file " + f.getPath(), ex,
+                Project.MSG_WARN);
+        }
+    }
+
+    private ExtractionManifest getManifest() {
+        ArchiveContext archive = currentArchive.get();
+        return archive == null ? null : archive.manifest;
+    }
+
+    /**
+     * Skips the archive if a manifest says it has already been
+     * expanded, delegates to {@link #expandArchiveFile} otherwise.
+     */
+    @Override
     protected void expandFile(FileUtils fileUtils, File srcF, File dir) {
+        if (!useManifest || !srcF.isFile()) {
+            expandArchiveFile(fileUtils, srcF, dir);
+            return;
+        }
+        if (!(getMapper() instanceof IdentityMapper)) {
+            log("Not using a manifest as a mapper has been specified.",
+                Project.MSG_VERBOSE);
+            expandArchiveFile(fileUtils, srcF, dir);
+            return;
+        }
+        EntrySelection selection = getSelection();
+        ExtractionManifest m =
+            new ExtractionManifest(srcF, dir,
+                                   "encoding=" + getEncoding()
+                                   + ", stripAbsolutePathSpec="
+                                   + stripAbsolutePathSpec
+                                   + ", skipUnreadableEntries="
+                                   + skipUnreadable
+                                   + ", " + (selection == null
+                                             ? "all entries" : selection),
+                                   manifestHash);
+        try {
+            if (m.isCurrent()) {
+                log("Skipping " + srcF + " as it has already been expanded"
+                    + " into " + dir, Project.MSG_INFO);
+                return;
+            }
+            m.delete();
+            ArchiveContext archive = currentArchive.get();
+            boolean ownContext = archive == null;
+            if (ownContext) {
+                archive = new ArchiveContext(0);
+                currentArchive.set(archive);
+            }
+            archive.manifest = m;
+            try {
+                expandArchiveFile(fileUtils, srcF, dir);
+            } finally {
+                archive.manifest = null;
+                if (ownContext) {
+                    currentArchive.remove();
+                }
+            }
+            m.write();
+        } catch (IOException ioe) {
+            throw new BuildException("Error while handling the manifest of "
+                                     + srcF.getPath() + "\n"
+                                     + ioe.toString(), ioe, getLocation());
+        }
+    }
+
+    /**
+     * Expands an archive that is a file.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected void expandArchiveFile(FileUtils fileUtils, File srcF,
+                                     File dir) {
         if (!srcF.exists()) {
             throw new BuildException("Unable to expand " + srcF
                                      + " as the file does not exist",
@@ -111,7 +747,14 @@ protected void expandFile(FileUtils fileUtils, File srcF, File dir) {
                                              getEncoding());
             if (is != null) {
                 expandArchiveStream(srcF.getPath(), (ArchiveInputStream) is,
-                                    dir);
+                                    dir, null);
+            } else if (canSeekOverEntries() && !readAhead) {
+                SeekableFileInputStream s = new SeekableFileInputStream(srcF);
+                is = s;
+                try (ArchiveInputStream ais =
+                         factory.getArchiveStream(s, getEncoding())) {
+                    expandArchiveStream(srcF.getPath(), ais, dir, s);
+                }
             } else {
                 is = new FileInputStream(srcF);
                 expandStream(srcF.getPath(), is, dir);
@@ -145,17 +788,53 @@ protected void expandResource(Resource srcR, File dir) {
     private void expandStream(String name, InputStream stream, File dir)
         throws IOException {
         try (ArchiveInputStream is =
-                 factory.getArchiveStream(new BufferedInputStream(stream),
+                 factory.getArchiveStream(new BufferedInputStream(wrap(stream)),
                                           getEncoding())) {
-            expandArchiveStream(name, is, dir);
+            expandArchiveStream(name, is, dir, null);
         }
     }
 
+    private InputStream wrap(InputStream stream) {
+        if (!readAhead) {
+            return stream;
+        }
+        return new ReadAheadInputStream(stream, readAheadBuffers,
+                                        ReadAheadInputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param seekable the stream the archive stream reads from if it
+     * is able to seek over entries that are not selected, null
+     * otherwise
+     */
     private void expandArchiveStream(String name, ArchiveInputStream is,
-                                     File dir)
+                                     File dir,
+                                     SeekableFileInputStream seekable)
         throws IOException {
         FileNameMapper mapper = getMapper();
         log("Expanding: " + name + " into " + dir, Project.MSG_INFO);
+        EntrySelection selection = getSelection();
+        boolean empty = writerThreads == 1
+            ? extractEntries(is, dir, mapper, selection, seekable)
+            : extractEntriesWithWriters(is, dir,
+                                        new SynchronizedMapper(mapper),
+                                        selection, seekable);
+        if (empty && getFailOnEmptyArchive()) {
+            throw new BuildException("archive '" + name + "' is empty");
+        }
+        log("expand complete", Project.MSG_VERBOSE);
+    }
+
+    /**
+     * Extracts all entries on the current thread.
+     *
+     * @return true if the archive is empty
+     */
+    private boolean extractEntries(ArchiveInputStream is, File dir,
+                                   FileNameMapper mapper,
+                                   EntrySelection selection,
+                                   SeekableFileInputStream seekable)
+        throws IOException {
         boolean empty = true;
         ArchiveEntry ent = null;
         while ((ent = is.getNextEntry()) != null) {
@@ -164,14 +843,308 @@ private void expandArchiveStream(String name, ArchiveInputStream is,
                 continue;
             }
             empty = false;
+            if (selection != null && !selection.selects(ent.getName())) {
+                log("skipping " + ent.getName() + " as it is excluded or"
+                    + " not included.", Project.MSG_VERBOSE);
+                skipEntry(ent, seekable);
+                continue;
+            }
+            if (isUnchanged(FileUtils.getFileUtils(), dir, ent.getName(),
+                            ent.isDirectory(), ent.getSize(),
+                            getEntryCrc(ent), mapper)) {
+                skipEntry(ent, seekable);
+                continue;
+            }
             log("extracting " + ent.getName(), Project.MSG_DEBUG);
-            extractFile(FileUtils.getFileUtils(), null, dir, is,
+            extractFile(FileUtils.getFileUtils(), null, dir,
+                        getEntryData(is, ent, seekable, dir, mapper),
                         ent.getName(), ent.getLastModifiedDate(),
                         ent.isDirectory(), mapper);
         }
-        if (empty && getFailOnEmptyArchive()) {
-            throw new BuildException("archive '" + name + "' is empty");
+        return empty;
+    }
+
+    /**
+     * Reads the archive on the current thread and hands small files
+     * to a pool of writers.
+     *
+     * <p>Directories, big files and files of unknown size are
+     * extracted on the current thread.  The first entry is always
+     * extracted on the current thread as this makes nested
+     * patternsets read their includes and excludes files before they
+     * are used concurrently.  Pending files are written before a
+     * directory that may contain them is extracted or a name is seen
+     * a second time, so timestamps of directories and the winner
+     * among entries of the same name are the same as with a single
+     * thread.</p>
+     *
+     * @return true if the archive is empty
+     */
+    private boolean extractEntriesWithWriters(ArchiveInputStream is,
+                                              final File dir,
+                                              final FileNameMapper mapper,
+                                              EntrySelection selection,
+                                              SeekableFileInputStream seekable)
+        throws IOException {
+        boolean empty = true;
+        final FileUtils fileUtils = FileUtils.getFileUtils();
+        final Semaphore memory = new Semaphore(writerMemory);
+        final Semaphore writers = new Semaphore(writerThreads);
+        final int maxBuffered = Math.min(smallFileSize, writerMemory);
+        ExecutorService pool = newWriterPool();
+        LinkedList<PendingWrite> pending = new LinkedList<>();
+        NameFingerprints names = new NameFingerprints();
+        try {
+            ArchiveEntry ent = null;
+            while ((ent = is.getNextEntry()) != null) {
+                if (skipUnreadable && !is.canReadEntryData(ent)) {
+                    log(Messages.skippedIsUnreadable(ent));
+                    continue;
+                }
+                final String entryName = ent.getName();
+                if (selection != null && !selection.selects(entryName)) {
+                    empty = false;
+                    log("skipping " + entryName + " as it is excluded or"
+                        + " not included.", Project.MSG_VERBOSE);
+                    skipEntry(ent, seekable);
+                    continue;
+                }
+                if (!names.add(entryName)
+                    || ent.isDirectory() && writesInto(pending, entryName)) {
+                    awaitAll(pending);
+                }
+                if (isUnchanged(fileUtils, dir, entryName, ent.isDirectory(),
+                                ent.getSize(), getEntryCrc(ent), mapper)) {
+                    empty = false;
+                    skipEntry(ent, seekable);
+                    continue;
+                }
+                log("extracting " + entryName, Project.MSG_DEBUG);
+                long size = ent.getSize();
+                if (empty || ent.isDirectory() || size < 0
+                    || size > maxBuffered) {
+                    empty = false;
+                    extractFile(fileUtils, null, dir,
+                                getEntryData(is, ent, seekable, dir, mapper),
+                                entryName, ent.getLastModifiedDate(),
+                                ent.isDirectory(), mapper);
+                    continue;
+                }
+                final int permits = (int) size;
+                acquire(memory, permits);
+                Future<Void> f;
+                try {
+                    byte[] buffer = new byte[permits];
+                    int read = IOUtils.readFully(is, buffer);
+                    final byte[] data = read < permits
+                        ? Arrays.copyOf(buffer, read) : buffer;
+                    final Date date = ent.getLastModifiedDate();
+                    f = pool.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                try {
+                                    acquire(writers, 1);
+                                    try {
+                                        InputStream in =
+                                            new ByteArrayInputStream(data);
+                                        extractFile(fileUtils, null, dir, in,
+                                                    entryName, date, false,
+                                                    mapper);
+                                    } finally {
+                                        writers.release();
+                                    }
+                                } finally {
+                                    memory.release(permits);
+                                }
+                                return null;
+                            }
+                        });
+                } catch (IOException | RuntimeException ex) {
+                    memory.release(permits);
+                    throw ex;
+                }
+                pending.add(new PendingWrite(entryName, f));
+                if (pending.size()
+                    > writerThreads * PENDING_WRITES_PER_THREAD) {
+                    awaitExtraction(pending.removeFirst().result);
+                }
+            }
+            awaitAll(pending);
+        } finally {
+            pool.shutdownNow();
+        }
+        return empty;
+    }
+
+    /**
+     * A stream that transfers the entry's data from the archive's
+     * channel to the target file if the data is big enough and can
+     * be located inside the archive, the archive stream otherwise.
+     */
+    private InputStream getEntryData(ArchiveInputStream is,
+                                     ArchiveEntry ent,
+                                     SeekableFileInputStream seekable,
+                                     File dir, FileNameMapper mapper)
+        throws IOException {
+        if (seekable == null || ent.isDirectory()) {
+            return is;
+        }
+        long size = getSeekableDataSize(ent);
+        if (size < MIN_TRANSFER_SIZE) {
+            return is;
+        }
+        long offset = seekable.getPosition();
+        seekable.discard(size);
+        return new TransferringInputStream(seekable.getChannel(), offset,
+                                           size,
+                                           getTargetFile(FileUtils
+                                                         .getFileUtils(),
+                                                         dir, ent.getName(),
+                                                         mapper));
+    }
+
+    private void skipEntry(ArchiveEntry ent, SeekableFileInputStream seekable)
+        throws IOException {
+        if (seekable != null) {
+            long size = getSeekableDataSize(ent);
+            if (size > 0) {
+                seekable.discard(size);
+            }
+        }
+    }
+
+    /**
+     * Uses virtual threads if the Java VM supports them and a fixed
+     * pool otherwise.  Writes acquire a permit of a semaphore with
+     * writerThreads permits so no more than writerThreads files are
+     * written at the same time in either case.
+     */
+    private ExecutorService newWriterPool() {
+        try {
+            Method m = Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return Executors.newFixedThreadPool(writerThreads);
+        }
+    }
+
+    private static boolean writesInto(LinkedList<PendingWrite> pending,
+                                      String directoryName) {
+        for (PendingWrite p : pending) {
+            if (p.name.startsWith(directoryName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void awaitAll(LinkedList<PendingWrite> pending)
+        throws IOException {
+        while (!pending.isEmpty()) {
+            awaitExtraction(pending.removeFirst().result);
+        }
+    }
+
+    private static void acquire(Semaphore memory, int permits) {
+        try {
+            memory.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("interrupted while extracting", ex);
+        }
+    }
+
+    /**
+     * Waits for a file that is extracted by a different thread and
+     * rethrows any exception the extraction has caused.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected static void awaitExtraction(Future<?> result)
+        throws IOException {
+        try {
+            result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("interrupted while extracting", ex);
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new BuildException(t);
+        }
+    }
+
+    /**
+     * State of the archive that is expanded by the current thread,
+     * inherited by threads the expansion creates.
+     */
+    private static final class ArchiveContext {
+        private final int index;
+        private ExtractionManifest manifest;
+
+        private ArchiveContext(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * The archive that has written or is writing a file when
+     * expanding archives concurrently.
+     */
+    private static final class Claim {
+        private int owner;
+
+        private Claim(int owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * A small file that is being written by the pool.
+     */
+    private static final class PendingWrite {
+        private final String name;
+        private final Future<Void> result;
+
+        private PendingWrite(String name, Future<Void> result) {
+            this.name = name;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Serializes access to a mapper that is shared by the threads
+     * extracting files as mappers are not required to be thread-safe.
+     *
+     * @since Compress Antlib 1.6
+     */
+    protected static final class SynchronizedMapper
+        implements FileNameMapper {
+        private final FileNameMapper mapper;
+
+        protected SynchronizedMapper(FileNameMapper mapper) {
+            this.mapper = mapper;
+        }
+
+        @Override
+        public synchronized void setFrom(String from) {
+            mapper.setFrom(from);
+        }
+
+        @Override
+        public synchronized void setTo(String to) {
+            mapper.setTo(to);
+        }
+
+        @Override
+        public synchronized String[] mapFileName(String sourceFileName) {
+            return mapper.mapFileName(sourceFileName);
         }
-        log("expand complete", Project.MSG_VERBOSE);
     }
 }
@@ -18,15 +18,47 @@
 
 package org.apache.ant.compress.taskdefs;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.apache.ant.compress.util.GZipStreamFactory;
+import org.apache.ant.compress.util.ParallelGzipInputStream;
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.tools.ant.BuildException;
 
 /**
  * Expands a gzip archive.
  */
 public final class GUnzip extends UnpackBase {
+    private int threads = 1;
 
     public GUnzip() {
-        super(".gz", new GZipStreamFactory());
+        super(".gz");
+        setFactory(new GZipStreamFactory() {
+                @Override
+                public CompressorInputStream getCompressorStream(InputStream stream,
+                                                                 boolean decompressConcatenated)
+                    throws IOException {
+                    if (threads > 1 && decompressConcatenated) {
+                        return new ParallelGzipInputStream(stream, threads);
+                    }
+                    return super.getCompressorStream(stream,
+                                                     decompressConcatenated);
+                }
+            });
     }
 
+    /**
+     * Number of threads inflating the members of a gzip file
+     * consisting of several members if decompressConcatenated is
+     * true.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
 }
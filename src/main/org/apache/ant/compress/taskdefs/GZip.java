@@ -25,9 +25,11 @@
 import org.apache.ant.compress.resources.CommonsCompressCompressorResource;
 import org.apache.ant.compress.resources.GZipResource;
 import org.apache.ant.compress.util.GZipStreamFactory;
+import org.apache.ant.compress.util.ParallelGzipOutputStream;
 import org.apache.commons.compress.compressors.CompressorOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.types.Resource;
 
 /**
@@ -35,6 +37,7 @@
  */
 public final class GZip extends PackBase {
     private int level = Deflater.DEFAULT_COMPRESSION;
+    private int threads = 1;
 
     public GZip() {
         super(new PackBase.ResourceWrapper() {
@@ -47,6 +50,10 @@ public CommonsCompressCompressorResource wrap(Resource dest) {
                 @Override
                 public CompressorOutputStream getCompressorStream(OutputStream stream)
                     throws IOException {
+                    if (threads > 1) {
+                        return new ParallelGzipOutputStream(stream, level,
+                                                            threads);
+                    }
                     GzipParameters params = new GzipParameters();
                     params.setCompressionLevel(level);
                     return new GzipCompressorOutputStream(stream, params);
@@ -64,4 +71,18 @@ public void setLevel(int level) {
         this.level = level;
     }
 
+    /**
+     * Number of threads compressing the input.  If more than one
+     * thread is used the input is split into blocks that are
+     * compressed into independent gzip members.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
+
 }
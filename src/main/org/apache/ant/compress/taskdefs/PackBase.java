@@ -223,6 +223,9 @@ private void pack() {
                     factory.getCompressorStream(new BufferedOutputStream(dest.getOutputStream()));
             }
             IOUtils.copy(in, out, BUFFER_SIZE);
+            // compressors may write buffered data when closed, don't
+            // let FileUtils.close swallow failures
+            out.close();
         } catch (IOException e) {
             throw new BuildException("Error compressing " + src.getName()
                                      + " to " + dest.getName(), e);
@@ -21,6 +21,7 @@
 import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -41,10 +42,19 @@
  * Creates 7z archives.
  */
 public class SevenZ extends ArchiveBase {
+    /**
+     * Dictionary sizes used by the XZ presets 0 to 9.
+     */
+    private static final int[] LZMA_DICTIONARY_SIZES = {
+        256 << 10, 1 << 20, 2 << 20, 4 << 20, 4 << 20,
+        8 << 20, 8 << 20, 16 << 20, 32 << 20, 64 << 20
+    };
 
     private boolean keepCompression = false;
     private String contentCompression;
     private List<SevenZMethodConfiguration> contentMethods;
+    private final List<CompressionPolicy> compressionPolicies =
+        new ArrayList<>();
 
     public SevenZ() {
         setFactory(new SevenZStreamFactory() {
@@ -77,6 +87,13 @@ public ArchiveEntry buildEntry(ArchiveBase.ResourceWithFlags r) {
                         && r.getResourceFlags().hasContentMethods()) {
                         entry.setContentMethods(r.getResourceFlags()
                                                 .getContentMethods());
+                    } else {
+                        CompressionPolicy policy =
+                            findCompressionPolicy(compressionPolicies, r);
+                        if (policy != null) {
+                            entry.setContentMethods(Collections
+                                .singletonList(asMethodConfiguration(policy)));
+                        }
                     }
                     return entry;
                 }
@@ -131,9 +148,72 @@ public void setKeepCompression(boolean keep) {
         keepCompression = keep;
     }
 
+    /**
+     * Adds a policy selecting method and level for entries matching
+     * certain patterns or sizes.  The first policy that applies to an
+     * entry is used, it replaces all content methods of the entry.
+     *
+     * <p>If the policy doesn't specify a method, the method specified
+     * by contentCompression or LZMA2 is used.</p>
+     *
+     * @since 1.6
+     */
+    public void addConfiguredCompressionPolicy(CompressionPolicy p) {
+        // fail early for unknown methods or levels
+        asMethodConfiguration(p);
+        compressionPolicies.add(p);
+    }
+
+    private SevenZMethodConfiguration
+        asMethodConfiguration(CompressionPolicy p) {
+        SevenZMethod m = asMethod(p.getMethod() != null ? p.getMethod()
+                                  : contentCompression != null
+                                  ? contentCompression
+                                  : SevenZMethod.LZMA2.name());
+        return new SevenZMethodConfiguration(m, asOption(m, p.getLevel()));
+    }
+
+    /**
+     * Translates a compression level to the option of the method.
+     *
+     * <p>For LZMA and LZMA2 this is the dictionary size of the XZ
+     * preset of the same level, for BZIP2 the block size and for
+     * DEFLATE the level itself.</p>
+     */
+    private static Object asOption(SevenZMethod m, Integer level) {
+        if (level == null) {
+            return null;
+        }
+        int l = level.intValue();
+        if (m == SevenZMethod.LZMA || m == SevenZMethod.LZMA2) {
+            if (l < 0 || l >= LZMA_DICTIONARY_SIZES.length) {
+                throw new BuildException("level must be between 0 and 9");
+            }
+            return Integer.valueOf(LZMA_DICTIONARY_SIZES[l]);
+        }
+        if (m == SevenZMethod.BZIP2) {
+            if (l < 1 || l > 9) {
+                throw new BuildException("level must be between 1 and 9");
+            }
+            return level;
+        }
+        if (m == SevenZMethod.DEFLATE) {
+            if (l < -1 || l > 9) {
+                throw new BuildException("level must be between -1 and 9");
+            }
+            return level;
+        }
+        throw new BuildException("method " + m + " doesn't support a level");
+    }
+
     private static SevenZMethod asMethod(String method) {
-        return (SevenZMethod) Enum.valueOf(SevenZMethod.class,
-                                           method.toUpperCase(Locale.US));
+        try {
+            return (SevenZMethod) Enum.valueOf(SevenZMethod.class,
+                                               method.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException ex) {
+            throw new BuildException("unsupported compression method "
+                                     + method, ex);
+        }
     }
 
     private static SevenZMethodConfiguration
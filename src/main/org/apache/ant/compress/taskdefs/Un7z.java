@@ -45,7 +45,8 @@ public Un7z() {
 
     // overridden in order to take advantage of SevenzFile
     @Override
-    protected void expandFile(FileUtils fileUtils, File srcF, File dir) {
+    protected void expandArchiveFile(FileUtils fileUtils, File srcF,
+                                     File dir) {
         if (!srcF.exists()) {
             throw new BuildException("Unable to expand " + srcF
                                      + " as the file does not exist",
@@ -66,6 +67,13 @@ protected void expandFile(FileUtils fileUtils, File srcF, File dir) {
                     continue;
                 }
                 */
+                if (isUnchanged(fileUtils, dir, ze.getName(), ze.isDirectory(),
+                                ze.getSize(),
+                                ze.getHasCrc() ? ze.getCrcValue() : -1,
+                                mapper)) {
+                    ze = zf.getNextEntry();
+                    continue;
+                }
                 log("extracting " + ze.getName(), Project.MSG_DEBUG);
                 try (InputStream is = new InputStream() {
                         @Override
@@ -18,16 +18,56 @@
 
 package org.apache.ant.compress.taskdefs;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.ant.compress.util.ParallelXZInputStream;
 import org.apache.ant.compress.util.XZStreamFactory;
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.resources.FileProvider;
 
 /**
  * Expands an xz archive.
  * @since Apache Compress Antlib 1.2
  */
 public final class UnXZ extends UnpackBase {
+    private int threads = 1;
 
     public UnXZ() {
-        super(".xz", new XZStreamFactory());
+        super(".xz");
+        setFactory(new XZStreamFactory() {
+                @Override
+                public CompressorInputStream getCompressorStream(InputStream stream,
+                                                                 boolean decompressConcatenated)
+                    throws IOException {
+                    FileProvider fp = (FileProvider) srcResource.as(FileProvider.class);
+                    if (threads > 1 && fp != null) {
+                        ParallelXZInputStream in =
+                            ParallelXZInputStream.open(fp.getFile(), threads,
+                                                       decompressConcatenated);
+                        if (in != null) {
+                            stream.close();
+                            return in;
+                        }
+                    }
+                    return super.getCompressorStream(stream,
+                                                     decompressConcatenated);
+                }
+            });
     }
 
+    /**
+     * Number of threads decompressing the blocks of an xz file
+     * consisting of several blocks.  Only used if the source is a
+     * file.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
 }
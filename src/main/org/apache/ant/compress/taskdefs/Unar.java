@@ -19,6 +19,8 @@
 package org.apache.ant.compress.taskdefs;
 
 import org.apache.ant.compress.util.ArStreamFactory;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
 
 /**
  * Unar a file.
@@ -27,4 +29,14 @@ public class Unar extends ExpandBase {
     public Unar() {
         super(new ArStreamFactory());
     }
+
+    @Override
+    protected boolean canSeekOverEntries() {
+        return true;
+    }
+
+    @Override
+    protected long getSeekableDataSize(ArchiveEntry entry) {
+        return ((ArArchiveEntry) entry).getLength();
+    }
 }
@@ -19,6 +19,9 @@
 package org.apache.ant.compress.taskdefs;
 
 import org.apache.ant.compress.util.CpioStreamFactory;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.cpio.CpioArchiveEntry;
+import org.apache.commons.compress.archivers.cpio.CpioConstants;
 
 /**
  * Uncpio a file.
@@ -38,4 +41,19 @@ public void setEncoding(String encoding) {
         internalSetEncoding(encoding);
     }
 
+    @Override
+    protected boolean canSeekOverEntries() {
+        return true;
+    }
+
+    // the stream verifies the checksum of the new CRC format while
+    // reading the data, so data must not bypass it
+    @Override
+    protected long getSeekableDataSize(ArchiveEntry entry) {
+        CpioArchiveEntry c = (CpioArchiveEntry) entry;
+        return c.isRegularFile()
+            && c.getFormat() != CpioConstants.FORMAT_NEW_CRC
+            ? c.getSize() : -1;
+    }
+
 }
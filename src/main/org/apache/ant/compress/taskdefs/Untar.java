@@ -19,6 +19,8 @@
 package org.apache.ant.compress.taskdefs;
 
 import org.apache.ant.compress.util.TarStreamFactory;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 
 /**
  * Untar a file.
@@ -32,4 +34,15 @@ public Untar() {
     public void setEncoding(String encoding) {
         internalSetEncoding(encoding);
     }
+
+    @Override
+    protected boolean canSeekOverEntries() {
+        return true;
+    }
+
+    @Override
+    protected long getSeekableDataSize(ArchiveEntry entry) {
+        TarArchiveEntry t = (TarArchiveEntry) entry;
+        return t.isFile() && !t.isSparse() ? t.getSize() : -1;
+    }
 }
@@ -21,12 +21,29 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
 
+import org.apache.ant.compress.util.EntrySelection;
 import org.apache.ant.compress.util.Messages;
+import org.apache.ant.compress.util.TransferringInputStream;
 import org.apache.ant.compress.util.ZipStreamFactory;
 
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
@@ -34,23 +51,53 @@
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.util.FileNameMapper;
 import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.util.IdentityMapper;
 
 /**
  * Unzip a file.
  */
 public class Unzip extends ExpandBase {
 
+    /**
+     * How many files per thread may be waiting to be extracted.
+     */
+    private static final int PENDING_ENTRIES_PER_THREAD = 4;
+
+    private int threads = 1;
+
     public Unzip() {
         super(new ZipStreamFactory());
     }
 
+    /**
+     * Number of threads to use when extracting files of archives that
+     * are files.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
+
     @Override
     public void setEncoding(String encoding) {
         internalSetEncoding(encoding);
     }
 
-    // overridden in order to take advantage of ZipFile
-    protected void expandFile(FileUtils fileUtils, File srcF, File dir) {
+    @Override
+    protected long getEntryCrc(ArchiveEntry entry) {
+        return ((ZipArchiveEntry) entry).getCrc();
+    }
+
+    // overridden in order to take advantage of ZipFile, entries are
+    // extracted in the order of their data inside the archive so the
+    // file is read sequentially and big stored entries are
+    // transferred without copying them
+    protected void expandArchiveFile(FileUtils fileUtils, File srcF,
+                                     File dir) {
         log("Expanding: " + srcF + " into " + dir, Project.MSG_INFO);
         FileNameMapper mapper = getMapper();
         if (!srcF.exists()) {
@@ -58,36 +105,305 @@ protected void expandFile(FileUtils fileUtils, File srcF, File dir) {
                                      + " as the file does not exist",
                                      getLocation());
         }
-        try (ZipFile zf = new ZipFile(srcF, getEncoding(), true)) {
-            boolean empty = true;
-            Enumeration e = zf.getEntries();
+        EntrySelection selection = getSelection();
+        try (ZipFile zf = new ZipFile(srcF, getEncoding(), true);
+             FileChannel channel = FileChannel.open(srcF.toPath(),
+                                                    StandardOpenOption.READ)) {
+            List<ZipArchiveEntry> selected = mapper instanceof IdentityMapper
+                ? findSelectedEntries(zf, selection) : null;
+            boolean empty;
+            if (selected != null) {
+                expandEntries(fileUtils, srcF, dir, zf, channel,
+                              Collections.enumeration(selected), mapper,
+                              null);
+                empty = !zf.getEntries().hasMoreElements();
+            } else if (threads == 1) {
+                empty = expandEntries(fileUtils, srcF, dir, zf, channel,
+                                      zf.getEntriesInPhysicalOrder(), mapper,
+                                      selection);
+            } else {
+                empty = expandEntriesConcurrently(
+                    fileUtils, srcF, dir, zf, channel,
+                    new SynchronizedMapper(mapper), selection);
+            }
+            if (empty && getFailOnEmptyArchive()) {
+                throw new BuildException("archive '" + srcF + "' is empty");
+            }
+            log("expand complete", Project.MSG_VERBOSE);
+        } catch (IOException ioe) {
+            throw new BuildException(
+                "Error while expanding " + srcF.getPath()
+                + "\n" + ioe.toString(),
+                ioe);
+        }
+    }
+
+    /**
+     * Looks up the entries selected by patternsets that only contain
+     * literal names.
+     *
+     * <p>ZipFile has already read the whole central directory, this
+     * only saves matching the patterns against every entry.</p>
+     *
+     * <p>The entries found are sorted by the position of their data
+     * inside the archive, so they are extracted in the same order as
+     * a scan of the whole archive would extract them.  If more than
+     * one variant of a name is present, null is returned.</p>
+     *
+     * @return the selected entries or null if the whole archive
+     * needs to be scanned
+     */
+    private static List<ZipArchiveEntry> findSelectedEntries(
+        ZipFile zf, EntrySelection selection) {
+        if (selection == null || selection.getLiteralNames() == null) {
+            return null;
+        }
+        List<ZipArchiveEntry> selected = new ArrayList<>();
+        for (Object literal : selection.getLiteralNames()) {
+            Iterable<ZipArchiveEntry> found = null;
+            for (Object variant : selection.getVariants((String) literal)) {
+                Iterable<ZipArchiveEntry> entries =
+                    zf.getEntriesInPhysicalOrder((String) variant);
+                if (entries.iterator().hasNext()) {
+                    if (found != null) {
+                        return null;
+                    }
+                    found = entries;
+                }
+            }
+            if (found != null) {
+                for (ZipArchiveEntry ze : found) {
+                    if (selection.selects(ze.getName())) {
+                        selected.add(ze);
+                    }
+                }
+            }
+        }
+        Collections.sort(selected, new Comparator<ZipArchiveEntry>() {
+                @Override
+                public int compare(ZipArchiveEntry e1, ZipArchiveEntry e2) {
+                    return Long.compare(e1.getDataOffset(),
+                                        e2.getDataOffset());
+                }
+            });
+        return selected;
+    }
+
+    /**
+     * Extracts the given entries on the current thread.
+     *
+     * @param selection used to skip entries before opening them,
+     * may be null
+     * @return true if there haven't been any entries
+     */
+    private boolean expandEntries(FileUtils fileUtils, File srcF, File dir,
+                                  ZipFile zf, FileChannel channel,
+                                  Enumeration e,
+                                  FileNameMapper mapper,
+                                  EntrySelection selection)
+        throws IOException {
+        boolean empty = true;
+        while (e.hasMoreElements()) {
+            empty = false;
+            ZipArchiveEntry ze = (ZipArchiveEntry) e.nextElement();
+            if (getSkipUnreadableEntries() && !zf.canReadEntryData(ze)) {
+                log(Messages.skippedIsUnreadable(ze));
+                continue;
+            }
+            if (selection != null && !selection.selects(ze.getName())) {
+                log("skipping " + ze.getName() + " as it is excluded or not"
+                    + " included.", Project.MSG_VERBOSE);
+                continue;
+            }
+            if (isUnchanged(fileUtils, dir, ze.getName(), ze.isDirectory(),
+                            ze.getSize(), ze.getCrc(), mapper)) {
+                continue;
+            }
+            log("extracting " + ze.getName(), Project.MSG_DEBUG);
+            InputStream is = null;
+            try {
+                extractFile(fileUtils, srcF, dir,
+                            is = getEntryData(fileUtils, dir, zf, channel,
+                                              ze, mapper),
+                            ze.getName(), new Date(ze.getTime()),
+                            ze.isDirectory(), mapper);
+            } finally {
+                FileUtils.close(is);
+            }
+        }
+        return empty;
+    }
+
+    /**
+     * Extracts files using a pool of threads.
+     *
+     * <p>Directories are created and the entry streams are opened on
+     * the current thread in the order of their data inside the
+     * archive, inflating and writing happens in the pool.  The first
+     * entry is always extracted on the current thread as this makes
+     * nested patternsets read their includes and excludes files
+     * before they are used concurrently.  If a name is seen a second
+     * time all pending files are written first so the last entry of
+     * that name wins like it does with a single thread.  The same
+     * happens before a directory entry is extracted while files
+     * inside of that directory are pending, otherwise writing the
+     * files would change the directory's timestamp after it has
+     * been set.</p>
+     *
+     * <p>The parent directories of the files are created on the
+     * current thread, each of them only once, so threads of the pool
+     * don't race each other creating the same directories.</p>
+     *
+     * @return true if the archive is empty
+     */
+    private boolean expandEntriesConcurrently(final FileUtils fileUtils,
+                                              final File srcF,
+                                              final File dir, ZipFile zf,
+                                              FileChannel channel,
+                                              final FileNameMapper mapper,
+                                              EntrySelection selection)
+        throws IOException {
+        boolean empty = true;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        LinkedList<PendingFile> pending = new LinkedList<>();
+        Set<String> names = new HashSet<>();
+        Set<File> directories = new HashSet<>();
+        try {
+            Enumeration e = zf.getEntriesInPhysicalOrder();
             while (e.hasMoreElements()) {
                 empty = false;
-                ZipArchiveEntry ze = (ZipArchiveEntry) e.nextElement();
+                final ZipArchiveEntry ze = (ZipArchiveEntry) e.nextElement();
                 if (getSkipUnreadableEntries() && !zf.canReadEntryData(ze)) {
                     log(Messages.skippedIsUnreadable(ze));
                     continue;
                 }
+                if (selection != null && !selection.selects(ze.getName())) {
+                    log("skipping " + ze.getName() + " as it is excluded"
+                        + " or not included.", Project.MSG_VERBOSE);
+                    continue;
+                }
                 log("extracting " + ze.getName(), Project.MSG_DEBUG);
-                InputStream is = null;
+                if (!names.add(ze.getName())
+                    || ze.isDirectory() && writesInto(pending, ze.getName())) {
+                    while (!pending.isEmpty()) {
+                        pending.removeFirst().await();
+                    }
+                }
+                if (isUnchanged(fileUtils, dir, ze.getName(),
+                                ze.isDirectory(), ze.getSize(), ze.getCrc(),
+                                mapper)) {
+                    continue;
+                }
+                if (ze.isDirectory() || names.size() == 1) {
+                    try (InputStream is = zf.getInputStream(ze)) {
+                        extractFile(fileUtils, srcF, dir, is, ze.getName(),
+                                    new Date(ze.getTime()), ze.isDirectory(),
+                                    mapper);
+                    }
+                    continue;
+                }
+                File parent = getTargetFile(fileUtils, dir, ze.getName(),
+                                            mapper).getParentFile();
+                if (parent != null && directories.add(parent)) {
+                    parent.mkdirs();
+                }
+                final InputStream is = getEntryData(fileUtils, dir, zf,
+                                                    channel, ze, mapper);
+                Future<Void> f;
                 try {
-                    extractFile(fileUtils, srcF, dir,
-                                is = zf.getInputStream(ze),
-                                ze.getName(), new Date(ze.getTime()),
-                                ze.isDirectory(), mapper);
-                } finally {
+                    f = pool.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                extractFile(fileUtils, srcF, dir, is,
+                                            ze.getName(),
+                                            new Date(ze.getTime()), false,
+                                            mapper);
+                                return null;
+                            }
+                        });
+                } catch (RuntimeException ex) {
                     FileUtils.close(is);
+                    throw ex;
+                }
+                pending.add(new PendingFile(ze.getName(), is, f));
+                if (pending.size() > threads * PENDING_ENTRIES_PER_THREAD) {
+                    pending.removeFirst().await();
                 }
             }
-            if (empty && getFailOnEmptyArchive()) {
-                throw new BuildException("archive '" + srcF + "' is empty");
+            while (!pending.isEmpty()) {
+                pending.removeFirst().await();
+            }
+        } finally {
+            pool.shutdownNow();
+            for (PendingFile p : pending) {
+                FileUtils.close(p.stream);
+            }
+        }
+        return empty;
+    }
+
+    private static boolean writesInto(LinkedList<PendingFile> pending,
+                                      String directoryName) {
+        for (PendingFile p : pending) {
+            if (p.name.startsWith(directoryName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The stream to read an entry's data from.
+     *
+     * <p>Data of big entries that are stored without compression is
+     * transferred from the archive's channel to the target file
+     * directly.</p>
+     */
+    private InputStream getEntryData(FileUtils fileUtils, File dir,
+                                     ZipFile zf, FileChannel channel,
+                                     ZipArchiveEntry ze,
+                                     FileNameMapper mapper)
+        throws IOException {
+        if (ze.getMethod() == ZipEntry.STORED && !ze.isDirectory()
+            && ze.getSize() >= MIN_TRANSFER_SIZE
+            && !ze.getGeneralPurposeBit().usesEncryption()) {
+            // opening the raw stream makes ZipFile locate the data
+            InputStream raw = zf.getRawInputStream(ze);
+            FileUtils.close(raw);
+            if (raw != null && ze.getDataOffset() >= 0) {
+                return new TransferringInputStream(channel,
+                                                   ze.getDataOffset(),
+                                                   ze.getSize(),
+                                                   getTargetFile(fileUtils,
+                                                                 dir,
+                                                                 ze.getName(),
+                                                                 mapper));
+            }
+        }
+        return zf.getInputStream(ze);
+    }
+
+    /**
+     * A file that is being extracted by the pool.
+     */
+    private static final class PendingFile {
+        private final String name;
+        private final InputStream stream;
+        private final Future<Void> result;
+
+        private PendingFile(String name, InputStream stream,
+                            Future<Void> result) {
+            this.name = name;
+            this.stream = stream;
+            this.result = result;
+        }
+
+        private void await() throws IOException {
+            try {
+                awaitExtraction(result);
+            } finally {
+                FileUtils.close(stream);
             }
-            log("expand complete", Project.MSG_VERBOSE);
-        } catch (IOException ioe) {
-            throw new BuildException(
-                "Error while expanding " + srcF.getPath()
-                + "\n" + ioe.toString(),
-                ioe);
         }
     }
 
@@ -18,9 +18,15 @@
 
 package org.apache.ant.compress.taskdefs;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import org.apache.ant.compress.resources.CommonsCompressCompressorResource;
 import org.apache.ant.compress.resources.XZResource;
+import org.apache.ant.compress.util.ParallelXZOutputStream;
 import org.apache.ant.compress.util.XZStreamFactory;
+import org.apache.commons.compress.compressors.CompressorOutputStream;
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.types.Resource;
 
 /**
@@ -28,15 +34,59 @@
  * @since Apache Compress Antlib 1.2
  */
 public final class XZ extends PackBase {
+    private int threads = 1;
+    private int blockSize = 0;
 
     public XZ() {
-        super(new XZStreamFactory(),
-              new PackBase.ResourceWrapper() {
+        super(new PackBase.ResourceWrapper() {
                 @Override
                 public CommonsCompressCompressorResource wrap(Resource dest) {
                     return new XZResource(dest);
                 }
             });
+        setFactory(new XZStreamFactory() {
+                @Override
+                public CompressorOutputStream getCompressorStream(OutputStream stream)
+                    throws IOException {
+                    if (threads > 1 || blockSize > 0) {
+                        return new ParallelXZOutputStream(stream,
+                                                          blockSize > 0
+                                                          ? blockSize
+                                                          : ParallelXZOutputStream.DEFAULT_BLOCK_SIZE,
+                                                          threads);
+                    }
+                    return super.getCompressorStream(stream);
+                }
+            });
+    }
+
+    /**
+     * Number of threads compressing the input.  If more than one
+     * thread is used the input is split into blocks that are
+     * compressed independently.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Number of uncompressed bytes per block if the input is split
+     * into blocks.  Setting it splits the input even if only a single
+     * thread is used.  Defaults to three times the dictionary size
+     * (24 MiB) if more than one thread is used.
+     * @param blockSize block size in bytes, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new BuildException("blockSize must be a positive number");
+        }
+        this.blockSize = blockSize;
     }
 
 }
@@ -18,28 +18,86 @@
 
 package org.apache.ant.compress.taskdefs;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
+import org.apache.ant.compress.util.CompressedEntryCache;
+import org.apache.ant.compress.util.CompressedEntryCache.CachedEntry;
+import org.apache.ant.compress.util.IncompressibleContentDetector;
+import org.apache.ant.compress.util.ZipCentralDirectory;
 import org.apache.ant.compress.util.ZipStreamFactory;
 import org.apache.ant.compress.resources.ZipFileSet;
+import org.apache.ant.compress.resources.ZipResource;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.Zip64Mode;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Expand;
 import org.apache.tools.ant.types.ArchiveFileSet;
 import org.apache.tools.ant.types.EnumeratedAttribute;
 import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.ArchiveResource;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.util.FileUtils;
 
 /**
  * Creates zip archives.
  */
 public class Zip extends ArchiveBase {
+    /**
+     * Entries bigger than this are compressed on the build thread
+     * even if multiple threads have been requested so the memory
+     * needed for the compressed data stays bounded.
+     */
+    private static final long MAX_PARALLEL_ENTRY_SIZE = 4 * 1024 * 1024;
+    /**
+     * How many entries per thread may be compressed ahead of the
+     * entry that is currently written to the archive.
+     */
+    private static final int PENDING_ENTRIES_PER_THREAD = 4;
+    /**
+     * Resources up to this size are only read once when they are
+     * looked up in and added to the cache of deflated entries.
+     */
+    private static final long MAX_BUFFERED_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final long DEFAULT_CACHE_SIZE = 256 * 1024 * 1024;
+
+    private int threads = 1;
     private int level = Deflater.DEFAULT_COMPRESSION;
     private String comment = "";
     private boolean keepCompression = false;
@@ -47,6 +105,20 @@ public class Zip extends ArchiveBase {
     private boolean useLanguageEncodingFlag = true;
     private UnicodeExtraField createUnicodeExtraFields = UnicodeExtraField.NEVER;
     private Zip64Enum zip64Mode = Zip64Enum.AS_NEEDED;
+    private UpdateStrategy updateStrategy = UpdateStrategy.REWRITE;
+    private int compactionThreshold = 50;
+    private final Map<String, ZipFile> rawSources = new HashMap<>();
+    private final List<CompressionPolicy> compressionPolicies =
+        new ArrayList<>();
+    private File cacheDir;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private CompressedEntryCache cache;
+    private boolean storeIncompressible = false;
+    private String incompressibleExtensions =
+        IncompressibleContentDetector.DEFAULT_EXTENSIONS;
+    private int entropySampleSize = 0;
+    private int minDeflateSavings = 0;
+    private IncompressibleContentDetector detector;
 
     public Zip() {
         setFactory(new ZipStreamFactory() {
@@ -75,7 +147,13 @@ public ArchiveOutputStream getArchiveOutputStream(File f,
                 @Override
                 public ArchiveEntry buildEntry(ArchiveBase.ResourceWithFlags r) {
                     boolean isDir = r.getResource().isDirectory();
-                    ZipArchiveEntry ent = new ZipArchiveEntry(r.getName());
+                    CompressionPolicy policy =
+                        findCompressionPolicy(compressionPolicies, r);
+                    ZipArchiveEntry ent =
+                        policy != null && policy.getLevel() != null
+                        ? new LeveledEntry(r.getName(),
+                                           policy.getLevel().intValue())
+                        : new ZipArchiveEntry(r.getName());
                     ent.setTime(round(r.getResource().getLastModified(), 2000));
                     ent.setSize(isDir ? 0 : r.getResource().getSize());
 
@@ -101,6 +179,8 @@ public ArchiveEntry buildEntry(ArchiveBase.ResourceWithFlags r) {
                         && r.getResourceFlags().hasCompressionMethod()) {
                         ent.setMethod(r.getResourceFlags()
                                       .getCompressionMethod());
+                    } else if (policy != null && policy.getMethod() != null) {
+                        ent.setMethod(asMethod(policy.getMethod()));
                     }
 
                     return ent;
@@ -177,6 +257,697 @@ public void setZip64Mode(Zip64Enum mode) {
         zip64Mode = mode;
     }
 
+    /**
+     * Number of threads to use when compressing the entries.  Entries
+     * are still written to the archive in the same order as with a
+     * single thread.  Default is 1.
+     * @param threads number of threads, must be positive
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new BuildException("threads must be a positive number");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * How existing archives are modified in the update and replace
+     * modes - "rewrite" (the default) or "append".
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setUpdateStrategy(UpdateStrategy s) {
+        updateStrategy = s;
+    }
+
+    /**
+     * Percentage of the archive's data occupied by entries that have
+     * been replaced or removed above which the "append" update
+     * strategy will rewrite the archive.  Default is 50.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setCompactionThreshold(int percent) {
+        if (percent < 0 || percent > 100) {
+            throw new BuildException("compactionThreshold must be between 0"
+                                     + " and 100");
+        }
+        compactionThreshold = percent;
+    }
+
+    /**
+     * Directory of a cache for deflated entries.  Resources whose
+     * content has been deflated with the same level before - by this
+     * or an earlier build - are copied from the cache rather than
+     * being deflated again.  Not used by default.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setCacheDir(File dir) {
+        cacheDir = dir;
+    }
+
+    /**
+     * Number of bytes the cache may occupy, the least recently used
+     * entries are removed at the end of the task if it grows bigger.
+     * Default is 256 MiB.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setCacheSize(long size) {
+        if (size < 0) {
+            throw new BuildException("cacheSize must not be negative");
+        }
+        cacheSize = size;
+    }
+
+    /**
+     * Whether entries that are unlikely to get smaller when deflated
+     * shall be stored without compression.  Only applies to entries
+     * whose compression method has not been set explicitly.
+     * Default is false.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setStoreIncompressible(boolean b) {
+        storeIncompressible = b;
+    }
+
+    /**
+     * Comma separated list of file name extensions of resources that
+     * are stored without compression if storeIncompressible is true.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setIncompressibleExtensions(String extensions) {
+        incompressibleExtensions = extensions;
+    }
+
+    /**
+     * Number of KiB at the start of each resource to sample when
+     * looking for incompressible content, resources whose sample has
+     * a very high entropy are stored without compression.  Default is
+     * 0 which disables the check.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setEntropySampleSize(int kib) {
+        if (kib < 0) {
+            throw new BuildException("entropySampleSize must not be"
+                                     + " negative");
+        }
+        entropySampleSize = kib;
+    }
+
+    /**
+     * Percentage of the size deflating must save at least, if it
+     * doesn't the entry is stored without compression instead.  Only
+     * used if storeIncompressible is true and only checked for
+     * resources of known size up to 4 MiB or if a cacheDir has been
+     * set.  Default is 0, i.e. entries are stored if deflating doesn't
+     * make them smaller at all.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void setMinDeflateSavings(int percent) {
+        if (percent < 0 || percent > 100) {
+            throw new BuildException("minDeflateSavings must be between 0"
+                                     + " and 100");
+        }
+        minDeflateSavings = percent;
+    }
+
+    /**
+     * Adds a policy selecting method ("stored" or "deflated") and
+     * level for entries matching certain patterns or sizes.  The
+     * first policy that applies to an entry is used.
+     *
+     * @since Apache Compress Antlib 1.6
+     */
+    public void addConfiguredCompressionPolicy(CompressionPolicy p) {
+        if (p.getMethod() != null) {
+            asMethod(p.getMethod());
+        }
+        if (p.getLevel() != null
+            && (p.getLevel().intValue() < Deflater.DEFAULT_COMPRESSION
+                || p.getLevel().intValue() > Deflater.BEST_COMPRESSION)) {
+            throw new BuildException("level must be between -1 and 9");
+        }
+        compressionPolicies.add(p);
+    }
+
+    private static int asMethod(String method) {
+        if ("stored".equalsIgnoreCase(method)) {
+            return ZipArchiveEntry.STORED;
+        }
+        if ("deflated".equalsIgnoreCase(method)) {
+            return ZipArchiveEntry.DEFLATED;
+        }
+        throw new BuildException("unsupported compression method " + method);
+    }
+
+    /**
+     * The level to use when deflating the given entry.
+     */
+    private int levelOf(ZipArchiveEntry ent) {
+        return ent instanceof LeveledEntry ? ((LeveledEntry) ent).level
+            : level;
+    }
+
+    @Override
+    protected boolean canUpdateInPlace() {
+        return updateStrategy.isAppend()
+            && getDest().as(FileProvider.class) != null;
+    }
+
+    /**
+     * Appends the given resources to the existing archive and writes
+     * a new central directory that contains the entries kept from
+     * the original archive and the new entries.
+     *
+     * <p>The data of the kept entries stays where it is, replaced
+     * entries become unreachable.  Returns false if the unreachable
+     * data would exceed the compaction threshold.</p>
+     */
+    @Override
+    protected boolean updateInPlace(Collection/*<ResourceWithFlags>*/ src)
+        throws IOException {
+        File archive =
+            ((FileProvider) getDest().as(FileProvider.class)).getFile();
+        String enc = Expand.NATIVE_ENCODING.equals(getEncoding())
+            ? null : getEncoding();
+
+        Set<String> replaced = new HashSet<>();
+        for (Iterator i = src.iterator(); i.hasNext(); ) {
+            replaced.add(((ResourceWithFlags) i.next()).getName());
+        }
+
+        List<String> names = new ArrayList<>();
+        try (ZipFile zf = new ZipFile(archive, enc)) {
+            for (Enumeration e = zf.getEntries(); e.hasMoreElements(); ) {
+                names.add(((ZipArchiveEntry) e.nextElement()).getName());
+            }
+        }
+
+        try (FileChannel ch = FileChannel.open(archive.toPath(),
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(ch);
+            List<ZipCentralDirectory.Record> records = cd.getRecords();
+            if (records.size() != names.size()) {
+                log("Can't match central directory of " + archive
+                    + ", rewriting it.", Project.MSG_VERBOSE);
+                return false;
+            }
+
+            List<ZipCentralDirectory.Record> kept = new ArrayList<>();
+            Set keptDirectories = new HashSet();
+            long live = 0;
+            for (int i = 0; i < records.size(); i++) {
+                String name = names.get(i);
+                if (!replaced.contains(name)) {
+                    ZipCentralDirectory.Record r = records.get(i);
+                    kept.add(r);
+                    live += r.getEntryLength(ch);
+                    if (name.endsWith("/")) {
+                        keptDirectories.add(name);
+                    }
+                }
+            }
+            long dead = cd.getOffset() - live;
+            if (dead * 100 > cd.getOffset() * compactionThreshold) {
+                log(dead + " of " + cd.getOffset() + " bytes of " + archive
+                    + " are no longer used, rewriting it.",
+                    Project.MSG_VERBOSE);
+                return false;
+            }
+
+            File added = FileUtils.getFileUtils()
+                .createTempFile(getTaskName(), ".tmp", null, true, false);
+            try {
+                ZipArchiveOutputStream o = new ZipArchiveOutputStream(added);
+                try {
+                    o.setEncoding(enc);
+                    configure(o);
+                    writeEntries(o, src, keptDirectories);
+                } finally {
+                    o.close();
+                }
+                appendEntries(ch, cd, kept, added, enc);
+            } finally {
+                FileUtils.getFileUtils().tryHardToDelete(added);
+            }
+        }
+        log("Appended " + src.size() + " entries to " + archive + ".",
+            Project.MSG_VERBOSE);
+        return true;
+    }
+
+    /**
+     * Copies the local file headers and data of a temporary archive
+     * to the end of the existing archive's data and writes the
+     * combined central directory after that.
+     *
+     * <p>The original central directory is overwritten, if anything
+     * goes wrong it is written back and the archive is truncated to
+     * its original length.</p>
+     */
+    private void appendEntries(FileChannel ch, ZipCentralDirectory cd,
+                               List<ZipCentralDirectory.Record> kept,
+                               File added, String enc)
+        throws IOException {
+        long dataEnd = cd.getOffset();
+        long originalSize = ch.size();
+        ByteBuffer originalTail = ByteBuffer.allocate((int) (originalSize
+                                                             - dataEnd));
+        while (originalTail.hasRemaining()) {
+            if (ch.read(originalTail, dataEnd + originalTail.position())
+                < 0) {
+                throw new EOFException("Truncated archive");
+            }
+        }
+        try (FileChannel in = FileChannel.open(added.toPath(),
+                                               StandardOpenOption.READ)) {
+            ZipCentralDirectory addedCd = ZipCentralDirectory.read(in);
+            long entries = kept.size() + addedCd.getRecords().size();
+            if (zip64Mode.getPolicy() == Zip64Mode.Never
+                && ZipCentralDirectory.needsZip64(entries, dataEnd
+                                                  + addedCd.getOffset(), 0)) {
+                throw new BuildException("archive would require Zip64"
+                                         + " extensions but zip64Mode is"
+                                         + " 'never'");
+            }
+            try {
+                long copied = 0;
+                while (copied < addedCd.getOffset()) {
+                    long n = in.transferTo(copied,
+                                           addedCd.getOffset() - copied,
+                                           ch.position(dataEnd + copied));
+                    if (n <= 0) {
+                        throw new EOFException("Truncated temporary"
+                                               + " archive " + added);
+                    }
+                    copied += n;
+                }
+                ch.position(dataEnd + copied);
+                OutputStream out =
+                    new BufferedOutputStream(Channels.newOutputStream(ch));
+                long cdSize = 0;
+                for (ZipCentralDirectory.Record r : kept) {
+                    cdSize += r.write(out, 0);
+                }
+                for (ZipCentralDirectory.Record r : addedCd.getRecords()) {
+                    cdSize += r.write(out, dataEnd);
+                }
+                ByteBuffer c = ZipEncodingHelper.getZipEncoding(enc)
+                    .encode(comment);
+                byte[] commentBytes = new byte[c.limit() - c.position()];
+                c.get(commentBytes);
+                ZipCentralDirectory.writeEnd(out, entries, dataEnd + copied,
+                                             cdSize, commentBytes,
+                                             zip64Mode.getPolicy()
+                                             == Zip64Mode.Always);
+                out.flush();
+                ch.truncate(ch.position());
+            } catch (IOException | RuntimeException | Error ex) {
+                restore(ch, dataEnd, originalTail, originalSize, ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Writes back the original central directory after a failed
+     * append.
+     */
+    private void restore(FileChannel ch, long dataEnd, ByteBuffer tail,
+                         long originalSize, Throwable cause) {
+        try {
+            tail.rewind();
+            while (tail.hasRemaining()) {
+                ch.write(tail, dataEnd + tail.position());
+            }
+            ch.truncate(originalSize);
+        } catch (IOException ex) {
+            cause.addSuppressed(ex);
+            log("Failed to restore " + getDest() + ", it is likely"
+                + " corrupt.", Project.MSG_ERR);
+        }
+    }
+
+    @Override
+    protected void writeEntries(ArchiveOutputStream out,
+                                Collection/*<ResourceWithFlags>*/ src,
+                                Set addedDirectories)
+        throws IOException {
+        if (cacheDir != null) {
+            cache = new CompressedEntryCache(cacheDir, cacheSize);
+        }
+        if (storeIncompressible) {
+            detector =
+                new IncompressibleContentDetector(incompressibleExtensions,
+                                                  entropySampleSize * 1024);
+        }
+        try {
+            if (threads == 1) {
+                super.writeEntries(out, src, addedDirectories);
+            } else {
+                writeEntriesInParallel(out, src, addedDirectories);
+            }
+        } finally {
+            for (ZipFile zf : rawSources.values()) {
+                ZipFile.closeQuietly(zf);
+            }
+            rawSources.clear();
+            if (cache != null) {
+                int evicted = cache.evict();
+                log("Compressed entry cache: " + cache.getHits() + " hits, "
+                    + cache.getMisses() + " misses, " + evicted
+                    + " entries evicted.");
+                cache = null;
+            }
+            detector = null;
+        }
+    }
+
+    /**
+     * Copies the compressed data of entries read from other ZIP
+     * archives if it can be used unchanged.
+     */
+    @Override
+    protected void writeEntry(ArchiveOutputStream out, ResourceWithFlags r,
+                              ArchiveEntry ent)
+        throws IOException {
+        ZipArchiveEntry target = (ZipArchiveEntry) ent;
+        ZipFile source = getRawSource(r, target);
+        if (source == null) {
+            if (detector != null && canCompressInParallel(r, target)) {
+                // may turn out to be stored, so compress into memory
+                writeCompressed(out, target, newCompressor(r, target).call());
+            } else if (isCacheable(r, target)) {
+                writeCachedEntry(out, r, target);
+            } else if (mayBeStored(r, target)
+                       && detector.isIncompressible(r.getResource())) {
+                writeStored(out, target, r.getResource());
+            } else if (levelOf(target) != level) {
+                ZipArchiveOutputStream zos = (ZipArchiveOutputStream) out;
+                zos.setLevel(levelOf(target));
+                try {
+                    super.writeEntry(out, r, ent);
+                } finally {
+                    zos.setLevel(level);
+                }
+            } else {
+                super.writeEntry(out, r, ent);
+            }
+            return;
+        }
+        ZipArchiveEntry sourceEntry = source.getEntry(r.getResource().getName());
+        target.setMethod(sourceEntry.getMethod());
+        target.setCrc(sourceEntry.getCrc());
+        target.setCompressedSize(sourceEntry.getCompressedSize());
+        target.setSize(sourceEntry.getSize());
+        try (InputStream in = source.getRawInputStream(sourceEntry)) {
+            ((ZipArchiveOutputStream) out).addRawArchiveEntry(target, in);
+        }
+    }
+
+    private boolean isCacheable(ResourceWithFlags r, ZipArchiveEntry ent) {
+        return cache != null && !r.getResource().isDirectory()
+            && (ent.getMethod() == -1
+                || ent.getMethod() == ZipArchiveEntry.DEFLATED);
+    }
+
+    /**
+     * Whether the entry may be stored rather than deflated because
+     * its content doesn't compress well.
+     */
+    private boolean mayBeStored(ResourceWithFlags r, ZipArchiveEntry ent) {
+        return detector != null && ent.getMethod() == -1
+            && !r.getResource().isDirectory();
+    }
+
+    private void writeCachedEntry(ArchiveOutputStream out,
+                                  ResourceWithFlags r, ZipArchiveEntry ent)
+        throws IOException {
+        boolean mayBeStored = mayBeStored(r, ent);
+        if (mayBeStored && detector.isIncompressible(r.getResource())) {
+            writeStored(out, ent, r.getResource());
+            return;
+        }
+        try (CachedEntry c = fromCache(cache, r.getResource(),
+                                       levelOf(ent))) {
+            if (mayBeStored && !savesEnough(c.getCompressedSize(),
+                                            c.getSize(),
+                                            minDeflateSavings)) {
+                writeStored(out, ent, r.getResource(), c.getCrc(),
+                            c.getSize());
+                return;
+            }
+            ent.setMethod(ZipArchiveEntry.DEFLATED);
+            ent.setCrc(c.getCrc());
+            ent.setCompressedSize(c.getCompressedSize());
+            ent.setSize(c.getSize());
+            ((ZipArchiveOutputStream) out)
+                .addRawArchiveEntry(ent, c.getRawInputStream());
+        }
+    }
+
+    /**
+     * Writes the resource without compression after calculating its
+     * CRC.
+     */
+    private static void writeStored(ArchiveOutputStream out,
+                                    ZipArchiveEntry ent, Resource res)
+        throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try (InputStream in = res.getInputStream()) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+                size += n;
+            }
+        }
+        writeStored(out, ent, res, crc.getValue(), size);
+    }
+
+    private static void writeStored(ArchiveOutputStream out,
+                                    ZipArchiveEntry ent, Resource res,
+                                    long crc, long size)
+        throws IOException {
+        ent.setMethod(ZipArchiveEntry.STORED);
+        ent.setCrc(crc);
+        ent.setSize(size);
+        ent.setCompressedSize(size);
+        try (InputStream in = res.getInputStream()) {
+            ((ZipArchiveOutputStream) out).addRawArchiveEntry(ent, in);
+        }
+    }
+
+    /**
+     * Whether deflating has saved at least the given percentage of
+     * the size.
+     */
+    private static boolean savesEnough(long compressedSize, long size,
+                                       int minSavings) {
+        return compressedSize * 100 < size * (100 - minSavings);
+    }
+
+    /**
+     * Looks up the deflated content of the resource in the cache and
+     * adds it if it is not present.
+     *
+     * <p>Resources up to MAX_BUFFERED_CACHE_SIZE bytes are read into
+     * memory once, bigger resources are read a second time if the
+     * cache doesn't contain them.</p>
+     */
+    private static CachedEntry fromCache(CompressedEntryCache cache,
+                                         Resource res, int level)
+        throws IOException {
+        long size = res.getSize();
+        if (size >= 0 && size <= MAX_BUFFERED_CACHE_SIZE) {
+            byte[] content;
+            try (InputStream in = res.getInputStream()) {
+                content = IOUtils.toByteArray(in);
+            }
+            CachedEntry c = cache.get(CompressedEntryCache
+                                      .key(new ByteArrayInputStream(content),
+                                           level));
+            return c != null ? c
+                : cache.put(new ByteArrayInputStream(content), level);
+        }
+        String key;
+        try (InputStream in = res.getInputStream()) {
+            key = CompressedEntryCache.key(in, level);
+        }
+        CachedEntry c = cache.get(key);
+        if (c == null) {
+            try (InputStream in = res.getInputStream()) {
+                c = cache.put(in, level);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Returns the opened source archive if the resource is an entry
+     * of a ZIP archive that is a file and its compressed data can be
+     * copied as is.
+     *
+     * <p>This is the case if the original compression is kept or the
+     * entry has been deflated and no explicit level has been
+     * specified.</p>
+     */
+    private ZipFile getRawSource(ResourceWithFlags r, ZipArchiveEntry ent)
+        throws IOException {
+        Resource res = r.getResource();
+        if (res.isDirectory()
+            || (!keepCompression
+                && (levelOf(ent) != Deflater.DEFAULT_COMPRESSION
+                    || (ent.getMethod() != -1
+                        && ent.getMethod() != ZipArchiveEntry.DEFLATED)))) {
+            return null;
+        }
+        String encoding;
+        if (res instanceof ZipResource) {
+            encoding = ((ZipResource) res).getEncoding();
+        } else if (res instanceof
+                   org.apache.tools.ant.types.resources.ZipResource) {
+            encoding = ((org.apache.tools.ant.types.resources.ZipResource) res)
+                .getEncoding();
+        } else {
+            return null;
+        }
+        FileProvider fp = (FileProvider) ((ArchiveResource) res).getArchive()
+            .as(FileProvider.class);
+        if (fp == null) {
+            return null;
+        }
+        String key = fp.getFile().getAbsolutePath() + "|" + encoding;
+        ZipFile zf = rawSources.get(key);
+        if (zf == null) {
+            zf = new ZipFile(fp.getFile(), encoding);
+            rawSources.put(key, zf);
+        }
+        ZipArchiveEntry sourceEntry = zf.getEntry(res.getName());
+        if (sourceEntry == null
+            || sourceEntry.getGeneralPurposeBit().usesEncryption()
+            || (!keepCompression
+                && sourceEntry.getMethod() != ZipArchiveEntry.DEFLATED)) {
+            return null;
+        }
+        return zf;
+    }
+
+    /**
+     * Compresses entries using a pool of threads.
+     *
+     * <p>Small entries are deflated into memory by the pool and
+     * copied raw into the archive in the order they have been
+     * given, all other entries are written by the build thread.</p>
+     */
+    private void writeEntriesInParallel(ArchiveOutputStream out,
+                                        Collection/*<ResourceWithFlags>*/ src,
+                                        Set addedDirectories)
+        throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        LinkedList<PendingEntry> pending = new LinkedList<>();
+        try {
+            for (Iterator i = src.iterator(); i.hasNext(); ) {
+                ResourceWithFlags r = (ResourceWithFlags) i.next();
+                ZipArchiveEntry ent =
+                    (ZipArchiveEntry) getEntryBuilder().buildEntry(r);
+                Future<CompressedEntry> data = null;
+                if (canCompressInParallel(r, ent)
+                    && getRawSource(r, ent) == null) {
+                    data = pool.submit(newCompressor(r, ent));
+                }
+                pending.add(new PendingEntry(r, ent, data));
+                if (pending.size() > threads * PENDING_ENTRIES_PER_THREAD) {
+                    writePending(out, pending.removeFirst(),
+                                 addedDirectories);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writePending(out, pending.removeFirst(), addedDirectories);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private boolean canCompressInParallel(ResourceWithFlags r,
+                                          ZipArchiveEntry ent) {
+        int method = ent.getMethod();
+        long size = r.getResource().getSize();
+        return !r.getResource().isDirectory()
+            && size >= 0 && size <= MAX_PARALLEL_ENTRY_SIZE
+            && (method == -1 || method == ZipArchiveEntry.DEFLATED
+                || method == ZipArchiveEntry.STORED);
+    }
+
+    private void writePending(ArchiveOutputStream out, PendingEntry p,
+                              Set addedDirectories)
+        throws IOException {
+        if (isDirectoryAlreadyAdded(p.resource, addedDirectories)) {
+            return;
+        }
+        if (!isFilesOnly()) {
+            ensureParentDirs(out, p.resource, addedDirectories);
+        }
+        if (p.data == null) {
+            writeEntry(out, p.resource, p.entry);
+            if (p.resource.getResource().isDirectory()) {
+                addedDirectories.add(p.resource.getName());
+            }
+            return;
+        }
+        writeCompressed(out, p.entry, await(p.data));
+    }
+
+    private static void writeCompressed(ArchiveOutputStream out,
+                                        ZipArchiveEntry ent,
+                                        CompressedEntry c)
+        throws IOException {
+        ent.setMethod(c.method);
+        ent.setCrc(c.crc);
+        ent.setSize(c.size);
+        ent.setCompressedSize(c.data.length);
+        ((ZipArchiveOutputStream) out)
+            .addRawArchiveEntry(ent, new ByteArrayInputStream(c.data));
+    }
+
+    private EntryCompressor newCompressor(ResourceWithFlags r,
+                                          ZipArchiveEntry ent) {
+        return new EntryCompressor(r.getResource(), ent.getMethod(),
+                                   levelOf(ent),
+                                   cache,
+                                   mayBeStored(r, ent) ? detector : null,
+                                   minDeflateSavings);
+    }
+
+    private static CompressedEntry await(Future<CompressedEntry> f)
+        throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("interrupted while compressing", ex);
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new BuildException(t);
+        }
+    }
+
     private void configure(ZipArchiveOutputStream o) {
         o.setLevel(level);
         o.setComment(comment);
@@ -260,4 +1031,161 @@ public Zip64Mode getPolicy() {
             return (Zip64Mode) POLICIES.get(getValue());
         }
     }
+
+    /**
+     * An entry with a compression level of its own.
+     */
+    private static final class LeveledEntry extends ZipArchiveEntry {
+        private final int level;
+
+        private LeveledEntry(String name, int level) {
+            super(name);
+            this.level = level;
+        }
+    }
+
+    /**
+     * An entry waiting to be written to the archive together with
+     * the - maybe not yet available - compressed content.
+     */
+    private static final class PendingEntry {
+        private final ResourceWithFlags resource;
+        private final ZipArchiveEntry entry;
+        private final Future<CompressedEntry> data;
+
+        private PendingEntry(ResourceWithFlags resource,
+                             ZipArchiveEntry entry,
+                             Future<CompressedEntry> data) {
+            this.resource = resource;
+            this.entry = entry;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Content of an entry as it is going to be stored inside the
+     * archive.
+     */
+    private static final class CompressedEntry {
+        private final int method;
+        private final byte[] data;
+        private final long crc;
+        private final long size;
+
+        private CompressedEntry(int method, byte[] data, long crc,
+                                long size) {
+            this.method = method;
+            this.data = data;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Reads a resource and deflates - or simply stores - its content
+     * in memory.
+     *
+     * <p>If a detector has been given, content that is
+     * incompressible or doesn't get small enough when deflated is
+     * stored.</p>
+     */
+    private static final class EntryCompressor
+        implements Callable<CompressedEntry> {
+        private final Resource resource;
+        private final int method;
+        private final int level;
+        private final CompressedEntryCache cache;
+        private final IncompressibleContentDetector detector;
+        private final int minSavings;
+
+        private EntryCompressor(Resource resource, int method, int level,
+                                CompressedEntryCache cache,
+                                IncompressibleContentDetector detector,
+                                int minSavings) {
+            this.resource = resource;
+            this.method = method == ZipArchiveEntry.STORED
+                ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED;
+            this.level = level;
+            this.cache = cache;
+            this.detector = detector;
+            this.minSavings = minSavings;
+        }
+
+        @Override
+        public CompressedEntry call() throws IOException {
+            if (detector != null && detector.isIncompressible(resource)) {
+                return compress(ZipArchiveEntry.STORED);
+            }
+            CompressedEntry c = compress(method);
+            if (detector != null && c.method == ZipArchiveEntry.DEFLATED
+                && !savesEnough(c.data.length, c.size, minSavings)) {
+                return compress(ZipArchiveEntry.STORED);
+            }
+            return c;
+        }
+
+        private CompressedEntry compress(int method) throws IOException {
+            if (cache != null && method == ZipArchiveEntry.DEFLATED) {
+                try (CachedEntry c = fromCache(cache, resource, level)) {
+                    return new CompressedEntry(method,
+                                               IOUtils.toByteArray(c
+                                                   .getRawInputStream()),
+                                               c.getCrc(), c.getSize());
+                }
+            }
+            CRC32 crc = new CRC32();
+            ByteArrayOutputStream bos =
+                new ByteArrayOutputStream((int) Math.max(resource.getSize(),
+                                                         32));
+            Deflater def = method == ZipArchiveEntry.DEFLATED
+                ? new Deflater(level, true) : null;
+            long size = 0;
+            try (InputStream in = resource.getInputStream()) {
+                OutputStream o = def == null ? bos
+                    : new DeflaterOutputStream(bos, def, BUFFER_SIZE);
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    crc.update(buf, 0, n);
+                    o.write(buf, 0, n);
+                    size += n;
+                }
+                o.close();
+            } finally {
+                if (def != null) {
+                    def.end();
+                }
+            }
+            return new CompressedEntry(method, bos.toByteArray(),
+                                       crc.getValue(), size);
+        }
+    }
+
+    /**
+     * How to modify existing archives: "rewrite" or "append".
+     * @since Apache Compress Antlib 1.6
+     */
+    public static final class UpdateStrategy extends EnumeratedAttribute {
+        private static final String REWRITE_KEY = "rewrite";
+        private static final String APPEND_KEY = "append";
+
+        @Override
+        public String[] getValues() {
+            return new String[] {REWRITE_KEY, APPEND_KEY};
+        }
+
+        public static final UpdateStrategy REWRITE =
+            new UpdateStrategy(REWRITE_KEY);
+
+        private UpdateStrategy(String name) {
+            setValue(name);
+        }
+
+        public UpdateStrategy() {
+        }
+
+        public boolean isAppend() {
+            return APPEND_KEY.equals(getValue());
+        }
+    }
 }
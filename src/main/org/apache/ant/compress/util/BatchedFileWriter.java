@@ -0,0 +1,195 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Writes extracted files with fewer file system operations than
+ * Ant's Expand task.
+ *
+ * <p>Directories that have been created or found are remembered so
+ * each directory is only created once, file content is written
+ * through large buffers that are reused.  Modification times are
+ * collected and applied by {@link #applyTimestamps} after all files
+ * have been written.</p>
+ *
+ * <p>Instances are thread-safe.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class BatchedFileWriter {
+    /**
+     * Size of the buffers used to write files.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private final Map<File, Boolean> directories = new ConcurrentHashMap<>();
+    private final Map<File, Boolean> insideDest = new ConcurrentHashMap<>();
+    private final Map<File, Long> timestamps = new LinkedHashMap<>();
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    /**
+     * Whether the given file or directory is located inside of dir
+     * once symbolic links of its parent directories have been
+     * resolved.
+     *
+     * <p>Only the parent directory is resolved, the file itself is
+     * not checked.</p>
+     */
+    public boolean isInside(File dir, File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent == null) {
+            return false;
+        }
+        Boolean inside = insideDest.get(parent);
+        if (inside == null) {
+            String d = dir.getCanonicalPath();
+            String p = parent.getCanonicalPath();
+            inside = p.equals(d) || p.startsWith(d.endsWith(File.separator)
+                                                 ? d : d + File.separator);
+            insideDest.put(parent, inside);
+        }
+        return inside;
+    }
+
+    /**
+     * Creates a directory and its parents unless it has been created
+     * or found before.
+     */
+    public void mkdirs(File dir) {
+        if (directories.containsKey(dir)) {
+            return;
+        }
+        if (dir.mkdirs() || dir.isDirectory()) {
+            directories.put(dir, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * The modification time of a file, taking timestamps into
+     * account that have not been applied, yet.
+     */
+    public long lastModified(File file) {
+        synchronized (timestamps) {
+            Long t = timestamps.get(file);
+            if (t != null) {
+                return t;
+            }
+        }
+        return file.lastModified();
+    }
+
+    /**
+     * Remembers the modification time to set for a file or directory
+     * later.
+     */
+    public void setLastModified(File file, long time) {
+        synchronized (timestamps) {
+            timestamps.remove(file);
+            timestamps.put(file, time);
+        }
+    }
+
+    /**
+     * Replaces the content of a file with the content of a stream.
+     */
+    public void write(File file, InputStream in) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            FileChannel out = fos.getChannel();
+            if (in instanceof TransferringInputStream) {
+                ((TransferringInputStream) in).transferTo(out);
+            } else {
+                copy(in, out);
+            }
+        }
+    }
+
+    /**
+     * Sets the modification times of all files and directories that
+     * have been collected so far, in the order they have been
+     * written.
+     */
+    public void applyTimestamps(FileUtils fileUtils) {
+        synchronized (timestamps) {
+            for (Map.Entry<File, Long> e : timestamps.entrySet()) {
+                fileUtils.setFileLastModified(e.getKey(), e.getValue());
+            }
+            timestamps.clear();
+        }
+    }
+
+    private long copy(InputStream in, FileChannel out) throws IOException {
+        ByteBuffer buffer = borrowBuffer();
+        try {
+            byte[] b = buffer.array();
+            long written = 0;
+            int n = 0;
+            while (n != -1) {
+                // fill the buffer so each write is as large as possible
+                int filled = 0;
+                while (filled < b.length
+                       && (n = in.read(b, filled, b.length - filled)) != -1) {
+                    filled += n;
+                }
+                buffer.clear();
+                buffer.limit(filled);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                written += filled;
+            }
+            return written;
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    private ByteBuffer borrowBuffer() {
+        synchronized (buffers) {
+            ByteBuffer b = buffers.poll();
+            if (b != null) {
+                return b;
+            }
+        }
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private void returnBuffer(ByteBuffer b) {
+        synchronized (buffers) {
+            if (buffers.size() < MAX_POOLED_BUFFERS) {
+                buffers.push(b);
+            }
+        }
+    }
+}
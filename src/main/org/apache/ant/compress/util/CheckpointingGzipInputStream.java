@@ -0,0 +1,645 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+/**
+ * Decompresses gzip data and is able to record and resume from
+ * checkpoints inside of a member.
+ *
+ * <p>java.util.zip.Inflater can neither report the boundaries of
+ * deflate blocks nor start decoding in the middle of a byte, so this
+ * stream decodes deflate data itself.  While reading a file from the
+ * start it records a {@link GzipIndex.Checkpoint} at the first block
+ * boundary after every <code>spacing</code> bytes of output, holding
+ * the position in bits and the last 32 KiB of output.  A stream
+ * created for a checkpoint continues decoding from there.</p>
+ *
+ * <p>The checksum of a member that has been entered through a
+ * checkpoint can't be verified as the start of the member hasn't been
+ * seen.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class CheckpointingGzipInputStream extends CompressorInputStream {
+    private static final int WINDOW_SIZE = 32 * 1024;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BITS = 15;
+    private static final int PRIMARY_BITS = 10;
+
+    private static final int MEMBER_HEADER = 0;
+    private static final int BLOCK_HEADER = 1;
+    private static final int STORED = 2;
+    private static final int CODES = 3;
+    private static final int MEMBER_TRAILER = 4;
+    private static final int END = 5;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int[] LENGTH_BASE = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43,
+        51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+    private static final int[] LENGTH_EXTRA = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4,
+        4, 4, 5, 5, 5, 5, 0
+    };
+    private static final int[] DISTANCE_BASE = {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257,
+        385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289,
+        16385, 24577
+    };
+    private static final int[] DISTANCE_EXTRA = {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9,
+        10, 10, 11, 11, 12, 12, 13, 13
+    };
+    private static final int[] CODE_LENGTH_ORDER = {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    private static final Huffman FIXED_LITERALS;
+    private static final Huffman FIXED_DISTANCES;
+
+    static {
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+        try {
+            FIXED_LITERALS = new Huffman(lengths, 288);
+            Arrays.fill(lengths, 0, 30, 5);
+            FIXED_DISTANCES = new Huffman(lengths, 30);
+        } catch (IOException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final InputStream in;
+    private final boolean decompressConcatenated;
+    private final long spacing;
+    private final List<GzipIndex.Checkpoint> checkpoints = new ArrayList<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private final byte[] single = new byte[1];
+    private final CRC32 crc = new CRC32();
+
+    private int bufferPos = 0;
+    private int bufferEnd = 0;
+    private long inputPos;
+    private long bits = 0;
+    private int bitCount = 0;
+
+    private int state;
+    private boolean firstMember = true;
+    private boolean lastBlock;
+    private boolean verifyMember;
+    private int storedRemaining;
+    private Huffman literals;
+    private Huffman distances;
+    private int copyRemaining = 0;
+    private int copyDistance;
+    private int windowPos = 0;
+    private long history = 0;
+    private long memberSize = 0;
+    private long produced = 0;
+    private long nextCheckpoint;
+
+    /**
+     * Reads gzip data from the start, recording checkpoints.
+     *
+     * @param in the stream to read from
+     * @param decompressConcatenated whether to read all members or
+     * only the first one
+     * @param spacing minimum number of uncompressed bytes between two
+     * checkpoints, no checkpoints are recorded if it is not positive
+     */
+    public CheckpointingGzipInputStream(InputStream in,
+                                        boolean decompressConcatenated,
+                                        long spacing) {
+        this.in = in;
+        this.decompressConcatenated = decompressConcatenated;
+        this.spacing = spacing;
+        nextCheckpoint = spacing > 0 ? spacing : Long.MAX_VALUE;
+        inputPos = 0;
+        state = MEMBER_HEADER;
+    }
+
+    /**
+     * Continues reading from a checkpoint.
+     *
+     * @param in the stream to read from, positioned at the byte
+     * holding the first bit of the checkpoint
+     * @param start the checkpoint
+     * @param decompressConcatenated whether to read the members
+     * following the one containing the checkpoint
+     */
+    public CheckpointingGzipInputStream(InputStream in,
+                                        GzipIndex.Checkpoint start,
+                                        boolean decompressConcatenated)
+        throws IOException {
+        this.in = in;
+        this.decompressConcatenated = decompressConcatenated;
+        spacing = 0;
+        nextCheckpoint = Long.MAX_VALUE;
+        inputPos = start.getBitOffset() >>> 3;
+        int shift = (int) (start.getBitOffset() & 7);
+        if (shift > 0) {
+            need(shift);
+            drop(shift);
+        }
+        byte[] w = start.getWindow();
+        System.arraycopy(w, 0, window, 0, w.length);
+        windowPos = w.length;
+        history = w.length;
+        produced = start.getUncompressedOffset();
+        firstMember = false;
+        verifyMember = false;
+        state = BLOCK_HEADER;
+    }
+
+    /**
+     * The checkpoints recorded so far.
+     */
+    public List<GzipIndex.Checkpoint> getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Number of compressed bytes consumed so far, counted from the
+     * start of the file.
+     */
+    public long getCompressedCount() {
+        return inputPos;
+    }
+
+    /**
+     * Whether the end of the data has been reached.
+     */
+    public boolean isFinished() {
+        return state == END;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n == 0) {
+            switch (state) {
+            case MEMBER_HEADER:
+                if (!readMemberHeader()) {
+                    state = END;
+                    return -1;
+                }
+                state = BLOCK_HEADER;
+                break;
+            case BLOCK_HEADER:
+                readBlockHeader();
+                break;
+            case STORED:
+            case CODES:
+                n = inflate(b, off, len);
+                break;
+            case MEMBER_TRAILER:
+                readMemberTrailer();
+                break;
+            default:
+                return -1;
+            }
+        }
+        if (verifyMember) {
+            crc.update(b, off, n);
+        }
+        count(n);
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Reads the header of the next member.
+     *
+     * @return false if the end of the data has been reached
+     */
+    private boolean readMemberHeader() throws IOException {
+        int id1 = readAlignedByte();
+        if (id1 == -1 && !firstMember) {
+            return false;
+        }
+        int id2 = readAlignedByte();
+        if (id1 != 0x1f || id2 != 0x8b) {
+            throw new IOException(firstMember
+                                  ? "Input is not in the .gz format"
+                                  : "Garbage after a valid .gz stream");
+        }
+        if (requireByte() != 8) {
+            throw new IOException("Unsupported compression method");
+        }
+        int flags = requireByte();
+        for (int i = 0; i < 6; i++) {
+            // MTIME, XFL and OS
+            requireByte();
+        }
+        if ((flags & FEXTRA) != 0) {
+            int xlen = requireByte() | (requireByte() << 8);
+            for (int i = 0; i < xlen; i++) {
+                requireByte();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (requireByte() != 0) {
+                // skip
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (requireByte() != 0) {
+                // skip
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            requireByte();
+            requireByte();
+        }
+        firstMember = false;
+        verifyMember = true;
+        crc.reset();
+        memberSize = 0;
+        history = 0;
+        return true;
+    }
+
+    private void readMemberTrailer() throws IOException {
+        long expectedCrc = readIntLE();
+        long expectedSize = readIntLE();
+        if (verifyMember) {
+            if (expectedCrc != crc.getValue()) {
+                throw new IOException("Gzip-compressed data is corrupt");
+            }
+            if (expectedSize != (memberSize & 0xffffffffL)) {
+                throw new IOException("Gzip-compressed data is corrupt");
+            }
+        }
+        state = decompressConcatenated ? MEMBER_HEADER : END;
+    }
+
+    private void readBlockHeader() throws IOException {
+        if (produced >= nextCheckpoint) {
+            recordCheckpoint();
+        }
+        need(3);
+        lastBlock = take(1) == 1;
+        int type = take(2);
+        switch (type) {
+        case 0:
+            alignToByte();
+            int length = readAlignedByte() | (readAlignedByte() << 8);
+            int inverted = readAlignedByte() | (readAlignedByte() << 8);
+            if (length < 0 || inverted < 0 || length != (~inverted & 0xffff)) {
+                throw new IOException("Invalid stored block lengths");
+            }
+            storedRemaining = length;
+            state = STORED;
+            break;
+        case 1:
+            literals = FIXED_LITERALS;
+            distances = FIXED_DISTANCES;
+            state = CODES;
+            break;
+        case 2:
+            readDynamicTables();
+            state = CODES;
+            break;
+        default:
+            throw new IOException("Invalid block type");
+        }
+    }
+
+    private void recordCheckpoint() {
+        int length = (int) Math.min(history, WINDOW_SIZE);
+        byte[] w = new byte[length];
+        for (int i = 0; i < length; i++) {
+            w[i] = window[(windowPos - length + i) & WINDOW_MASK];
+        }
+        checkpoints.add(new GzipIndex.Checkpoint(inputPos * 8 - bitCount,
+                                                 produced, w));
+        nextCheckpoint = produced + spacing;
+    }
+
+    private void readDynamicTables() throws IOException {
+        need(14);
+        int literalCount = take(5) + 257;
+        int distanceCount = take(5) + 1;
+        int codeLengthCount = take(4) + 4;
+        if (literalCount > 286 || distanceCount > 30) {
+            throw new IOException("Invalid dynamic block header");
+        }
+        int[] lengths = new int[19];
+        for (int i = 0; i < codeLengthCount; i++) {
+            need(3);
+            lengths[CODE_LENGTH_ORDER[i]] = take(3);
+        }
+        Huffman codeLengths = new Huffman(lengths, 19);
+        lengths = new int[literalCount + distanceCount];
+        int i = 0;
+        while (i < lengths.length) {
+            int symbol = decode(codeLengths);
+            if (symbol < 16) {
+                lengths[i++] = symbol;
+                continue;
+            }
+            int value = 0;
+            int repeat;
+            if (symbol == 16) {
+                if (i == 0) {
+                    throw new IOException("Invalid repeat of code length");
+                }
+                value = lengths[i - 1];
+                need(2);
+                repeat = 3 + take(2);
+            } else if (symbol == 17) {
+                need(3);
+                repeat = 3 + take(3);
+            } else {
+                need(7);
+                repeat = 11 + take(7);
+            }
+            if (i + repeat > lengths.length) {
+                throw new IOException("Too many code lengths");
+            }
+            Arrays.fill(lengths, i, i + repeat, value);
+            i += repeat;
+        }
+        if (lengths[256] == 0) {
+            throw new IOException("Missing end of block code");
+        }
+        literals = new Huffman(lengths, literalCount);
+        distances = new Huffman(Arrays.copyOfRange(lengths, literalCount,
+                                                   lengths.length),
+                                distanceCount);
+    }
+
+    /**
+     * Produces output of the current block, returns early at the end
+     * of the block.
+     */
+    private int inflate(byte[] b, int off, int len) throws IOException {
+        int n = 0;
+        if (state == STORED) {
+            while (n < len && storedRemaining > 0) {
+                put(b, off + n++, (byte) requireAlignedByte());
+                storedRemaining--;
+            }
+            if (storedRemaining == 0) {
+                endOfBlock();
+            }
+            return n;
+        }
+        while (n < len) {
+            if (copyRemaining > 0) {
+                byte v = window[(windowPos - copyDistance) & WINDOW_MASK];
+                put(b, off + n++, v);
+                copyRemaining--;
+                continue;
+            }
+            int symbol = decode(literals);
+            if (symbol < 256) {
+                put(b, off + n++, (byte) symbol);
+            } else if (symbol == 256) {
+                endOfBlock();
+                break;
+            } else {
+                symbol -= 257;
+                if (symbol >= LENGTH_BASE.length) {
+                    throw new IOException("Invalid length code");
+                }
+                need(LENGTH_EXTRA[symbol]);
+                copyRemaining = LENGTH_BASE[symbol]
+                    + take(LENGTH_EXTRA[symbol]);
+                int d = decode(distances);
+                if (d >= DISTANCE_BASE.length) {
+                    throw new IOException("Invalid distance code");
+                }
+                need(DISTANCE_EXTRA[d]);
+                copyDistance = DISTANCE_BASE[d] + take(DISTANCE_EXTRA[d]);
+                if (copyDistance > history) {
+                    throw new IOException("Invalid distance too far back");
+                }
+            }
+        }
+        return n;
+    }
+
+    private void endOfBlock() {
+        state = lastBlock ? MEMBER_TRAILER : BLOCK_HEADER;
+    }
+
+    private void put(byte[] b, int off, byte v) {
+        b[off] = v;
+        window[windowPos++ & WINDOW_MASK] = v;
+        history++;
+        memberSize++;
+        produced++;
+    }
+
+    private int decode(Huffman h) throws IOException {
+        fill(MAX_BITS);
+        int entry = h.table[(int) (bits & ((1 << PRIMARY_BITS) - 1))];
+        if (entry >= 0) {
+            int length = entry & 15;
+            if (length > bitCount) {
+                throw new EOFException("Truncated gzip data");
+            }
+            drop(length);
+            return entry >> 4;
+        }
+        // codes longer than the lookup table, decode bit by bit
+        int code = 0;
+        int first = 0;
+        int index = 0;
+        for (int length = 1; length <= MAX_BITS; length++) {
+            if (length > bitCount) {
+                throw new EOFException("Truncated gzip data");
+            }
+            code |= (int) (bits >>> (length - 1)) & 1;
+            int count = h.count[length];
+            if (code - count < first) {
+                drop(length);
+                return h.symbols[index + code - first];
+            }
+            index += count;
+            first += count;
+            first <<= 1;
+            code <<= 1;
+        }
+        throw new IOException("Invalid Huffman code");
+    }
+
+    private void need(int n) throws IOException {
+        if (!fill(n)) {
+            throw new EOFException("Truncated gzip data");
+        }
+    }
+
+    /**
+     * Tries to buffer at least n bits.
+     *
+     * @return false if the end of input has been reached before
+     */
+    private boolean fill(int n) throws IOException {
+        while (bitCount < n) {
+            int b = nextByte();
+            if (b == -1) {
+                return false;
+            }
+            bits |= ((long) b) << bitCount;
+            bitCount += 8;
+        }
+        return true;
+    }
+
+    private int take(int n) {
+        int v = (int) (bits & ((1L << n) - 1));
+        drop(n);
+        return v;
+    }
+
+    private void drop(int n) {
+        bits >>>= n;
+        bitCount -= n;
+    }
+
+    private void alignToByte() {
+        drop(bitCount & 7);
+    }
+
+    private int readAlignedByte() throws IOException {
+        alignToByte();
+        if (bitCount >= 8) {
+            return take(8);
+        }
+        return nextByte();
+    }
+
+    private int requireAlignedByte() throws IOException {
+        int b = readAlignedByte();
+        if (b == -1) {
+            throw new EOFException("Truncated gzip data");
+        }
+        return b;
+    }
+
+    private int requireByte() throws IOException {
+        return requireAlignedByte();
+    }
+
+    private long readIntLE() throws IOException {
+        long v = 0;
+        for (int i = 0; i < 4; i++) {
+            v |= ((long) requireAlignedByte()) << (8 * i);
+        }
+        return v;
+    }
+
+    private int nextByte() throws IOException {
+        if (bufferPos == bufferEnd) {
+            int n = in.read(buffer, 0, buffer.length);
+            if (n <= 0) {
+                return -1;
+            }
+            bufferPos = 0;
+            bufferEnd = n;
+        }
+        inputPos++;
+        return buffer[bufferPos++] & 0xff;
+    }
+
+    /**
+     * A canonical Huffman code with a lookup table for short codes.
+     */
+    private static final class Huffman {
+        private final short[] table = new short[1 << PRIMARY_BITS];
+        private final int[] count = new int[MAX_BITS + 1];
+        private final int[] symbols;
+
+        private Huffman(int[] lengths, int n) throws IOException {
+            Arrays.fill(table, (short) -1);
+            symbols = new int[n];
+            for (int i = 0; i < n; i++) {
+                count[lengths[i]]++;
+            }
+            count[0] = 0;
+            int left = 1;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                left <<= 1;
+                left -= count[len];
+                if (left < 0) {
+                    throw new IOException("Over-subscribed Huffman code");
+                }
+            }
+            int[] offsets = new int[MAX_BITS + 2];
+            int[] nextCode = new int[MAX_BITS + 2];
+            int code = 0;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                offsets[len + 1] = offsets[len] + count[len];
+                code = (code + count[len - 1]) << 1;
+                nextCode[len] = code;
+            }
+            for (int sym = 0; sym < n; sym++) {
+                int len = lengths[sym];
+                if (len == 0) {
+                    continue;
+                }
+                symbols[offsets[len]++] = sym;
+                int reversed = Integer.reverse(nextCode[len]++)
+                    >>> (32 - len);
+                if (len <= PRIMARY_BITS) {
+                    for (int i = reversed; i < table.length; i += 1 << len) {
+                        table[i] = (short) (sym << 4 | len);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 checksums of files, optionally persisted between builds.
+ *
+ * <p>A checksum is reused as long as size and modification time of
+ * the file are the same as they have been when it was
+ * calculated.</p>
+ *
+ * <p>Instances are thread-safe.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ChecksumCache {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File store;
+    private final Properties checksums = new Properties();
+    private boolean modified = false;
+
+    /**
+     * @param store file holding the checksums of earlier builds, may
+     * be null for a cache that only lives in memory
+     */
+    public ChecksumCache(File store) throws IOException {
+        this.store = store;
+        if (store != null && store.isFile()) {
+            try (InputStream in = new FileInputStream(store)) {
+                checksums.load(in);
+            }
+        }
+    }
+
+    /**
+     * The CRC32 checksum of the file's content.
+     */
+    public long getCrc(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        String stamp = file.length() + "," + file.lastModified() + ",";
+        String cached = checksums.getProperty(key);
+        if (cached != null && cached.startsWith(stamp)) {
+            try {
+                return Long.parseLong(cached.substring(stamp.length()));
+            } catch (NumberFormatException ex) {
+                // recalculate
+            }
+        }
+        long crc = calculate(file);
+        synchronized (this) {
+            checksums.setProperty(key, stamp + crc);
+            modified = true;
+        }
+        return crc;
+    }
+
+    /**
+     * Writes the checksums to the store, dropping those of files that
+     * don't exist anymore.
+     */
+    public synchronized void save() throws IOException {
+        if (store == null || !modified) {
+            return;
+        }
+        for (Iterator/*<Map.Entry>*/ i = checksums.entrySet().iterator();
+             i.hasNext(); ) {
+            Map.Entry e = (Map.Entry) i.next();
+            if (!new File((String) e.getKey()).isFile()) {
+                i.remove();
+            }
+        }
+        File parent = store.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (OutputStream out = new FileOutputStream(store)) {
+            checksums.store(out, "CRC32 checksums of extracted files");
+        }
+        modified = false;
+    }
+
+    private static long calculate(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * An on-disk cache of deflated content keyed by a hash of the
+ * uncompressed content and the compression level.
+ *
+ * <p>Each cached entry is a file inside the cache directory holding
+ * CRC and size of the uncompressed content followed by the raw
+ * deflated data.  Entries are written to temporary files and renamed
+ * so several builds may share a cache directory.  The last modified
+ * time of an entry is updated whenever it is used, {@link #evict}
+ * removes the least recently used entries once the cache has grown
+ * beyond its maximum size.</p>
+ *
+ * <p>A looked up entry keeps its file open until it is closed and
+ * new entries are only moved into the cache once they are closed, so
+ * entries removed by a concurrent eviction remain readable.</p>
+ *
+ * <p>Instances are safe to use from multiple threads.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class CompressedEntryCache {
+    private static final int MAGIC = 0x41434543; // "ACEC"
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String SUFFIX = ".deflated";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+    private final long maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param dir the directory holding the cached entries, will be
+     * created if necessary
+     * @param maxSize the number of bytes the cache may occupy after
+     * {@link #evict} has been called
+     */
+    public CompressedEntryCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new BuildException("failed to create cache directory "
+                                     + dir);
+        }
+    }
+
+    /**
+     * Calculates the key for the given content deflated using the
+     * given level.
+     */
+    public static String key(InputStream content, int level)
+        throws IOException {
+        MessageDigest md = newDigest();
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = content.read(buf)) != -1) {
+            md.update(buf, 0, n);
+        }
+        return key(md, level);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new BuildException(ex);
+        }
+    }
+
+    private static String key(MessageDigest md, int level) {
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder(2 * digest.length + 8);
+        for (int i = 0; i < digest.length; i++) {
+            sb.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+        }
+        return sb.append('_').append(Deflater.DEFLATED).append('_')
+            .append(level).toString();
+    }
+
+    /**
+     * Looks up a cached entry.
+     *
+     * <p>The entry's file is opened here, the returned entry must be
+     * closed.</p>
+     *
+     * @return null if the cache doesn't contain the entry
+     */
+    public CachedEntry get(String key) {
+        File f = new File(dir, key + SUFFIX);
+        CachedEntry e = null;
+        if (f.isFile()) {
+            try {
+                e = CachedEntry.read(f);
+            } catch (IOException ex) {
+                // corrupt or concurrently evicted, treat as a miss
+                f.delete();
+            }
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+            f.setLastModified(System.currentTimeMillis());
+        }
+        return e;
+    }
+
+    /**
+     * Deflates the given content and stores it in the cache.
+     *
+     * <p>The key is calculated from the content read here so the
+     * cache stays consistent even if the content has changed since
+     * {@link #key} has been invoked.</p>
+     *
+     * <p>The deflated content is kept in a temporary file until the
+     * returned entry is closed, only then it becomes visible to
+     * lookups and eviction.</p>
+     *
+     * @return the newly cached entry
+     */
+    public CachedEntry put(InputStream content, int level)
+        throws IOException {
+        File tmp = File.createTempFile("entry", ".tmp", dir);
+        boolean success = false;
+        try {
+            MessageDigest md = newDigest();
+            CRC32 crc = new CRC32();
+            long size = 0;
+            Deflater def = new Deflater(level, true);
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                // placeholders, patched below
+                out.writeLong(0);
+                out.writeLong(0);
+                OutputStream o = new DeflaterOutputStream(out, def,
+                                                          BUFFER_SIZE);
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = content.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                    crc.update(buf, 0, n);
+                    o.write(buf, 0, n);
+                    size += n;
+                }
+                o.close();
+            } finally {
+                def.end();
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.seek(4);
+                raf.writeLong(crc.getValue());
+                raf.writeLong(size);
+            }
+            CachedEntry e = CachedEntry.read(tmp);
+            e.publishAs = new File(dir, key(md, level) + SUFFIX);
+            success = true;
+            return e;
+        } finally {
+            if (!success) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache
+     * doesn't occupy more than its maximum size.
+     *
+     * @return the number of entries that have been removed
+     */
+    public int evict() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        final long[] lastModified = new long[files.length];
+        long total = 0;
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+            if (files[i].getName().endsWith(SUFFIX)) {
+                lastModified[i] = files[i].lastModified();
+                total += files[i].length();
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return Long.compare(lastModified[i1], lastModified[i2]);
+                }
+            });
+        int removed = 0;
+        for (int i = 0; i < order.length && total > maxSize; i++) {
+            File f = files[order[i]];
+            if (f.getName().endsWith(SUFFIX)) {
+                long len = f.length();
+                if (f.delete()) {
+                    total -= len;
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Number of lookups that found an entry.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that didn't find an entry.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Deflated content stored inside the cache.
+     */
+    public static final class CachedEntry implements Closeable {
+        private final File file;
+        private final InputStream in;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        // where a new entry is moved to once it is closed
+        private File publishAs;
+
+        private CachedEntry(File file, InputStream in, long crc, long size,
+                            long compressedSize) {
+            this.file = file;
+            this.in = in;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+
+        /**
+         * Opens the file and reads its header, the stream is left
+         * positioned at the deflated content.
+         */
+        private static CachedEntry read(File f) throws IOException {
+            InputStream in =
+                new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+            try {
+                DataInputStream data = new DataInputStream(in);
+                if (data.readInt() != MAGIC) {
+                    throw new IOException("not a cached entry " + f);
+                }
+                return new CachedEntry(f, in, data.readLong(),
+                                       data.readLong(),
+                                       f.length() - HEADER_SIZE);
+            } catch (IOException ex) {
+                FileUtils.close(in);
+                throw ex;
+            }
+        }
+
+        /**
+         * CRC of the uncompressed content.
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * Size of the uncompressed content.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Size of the deflated content.
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * The stream providing the deflated content, can only be
+         * read once.
+         */
+        public InputStream getRawInputStream() {
+            return in;
+        }
+
+        /**
+         * Closes the file and moves a new entry into the cache.
+         */
+        @Override
+        public void close() throws IOException {
+            in.close();
+            if (publishAs == null) {
+                return;
+            }
+            try {
+                Files.move(file.toPath(), publishAs.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(file.toPath(), publishAs.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                publishAs = null;
+                if (file.exists()) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
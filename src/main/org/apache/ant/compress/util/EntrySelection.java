@@ -0,0 +1,171 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.PatternSet;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * The include and exclude patterns of an unarchiving task's nested
+ * patternsets, read once.
+ *
+ * <p>Matches entry names the same way Ant's Expand task does before
+ * it extracts an entry, so entries that will not be extracted can
+ * be skipped without handing them to the task.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class EntrySelection {
+    private final boolean stripAbsolutePathSpec;
+    private final Set/*<String>*/ includes = new LinkedHashSet();
+    private final Set/*<String>*/ excludes = new LinkedHashSet();
+    private final List/*<String>*/ literalNames;
+
+    /**
+     * @param patternsets the task's nested patternsets, must not be
+     * empty
+     * @param project the project used to read the patterns
+     * @param stripAbsolutePathSpec whether the task removes leading
+     * separators from entry names
+     */
+    public EntrySelection(Collection/*<PatternSet>*/ patternsets,
+                          Project project, boolean stripAbsolutePathSpec) {
+        this.stripAbsolutePathSpec = stripAbsolutePathSpec;
+        boolean allLiteral = true;
+        List/*<String>*/ literals = new ArrayList();
+        for (Object o : patternsets) {
+            PatternSet p = (PatternSet) o;
+            String[] incls = p.getIncludePatterns(project);
+            if (incls == null || incls.length == 0) {
+                // no include pattern implicitly means includes="**"
+                incls = new String[] {"**"};
+            }
+            for (String incl : incls) {
+                String pattern = normalize(incl);
+                if (pattern.endsWith(File.separator)) {
+                    pattern += "**";
+                }
+                if (includes.add(pattern)) {
+                    if (SelectorUtils.hasWildcards(pattern)) {
+                        allLiteral = false;
+                    } else {
+                        literals.add(incl.replace('\\', '/'));
+                    }
+                }
+            }
+            String[] excls = p.getExcludePatterns(project);
+            if (excls != null) {
+                for (String excl : excls) {
+                    String pattern = normalize(excl);
+                    if (pattern.endsWith(File.separator)) {
+                        pattern += "**";
+                    }
+                    excludes.add(pattern);
+                }
+            }
+        }
+        literalNames = allLiteral ? literals : null;
+    }
+
+    /**
+     * Whether the entry of the given name will be extracted.
+     */
+    public boolean selects(String entryName) {
+        String name = entryName;
+        if (stripAbsolutePathSpec && name.length() > 0
+            && (name.charAt(0) == File.separatorChar
+                || name.charAt(0) == '/' || name.charAt(0) == '\\')) {
+            name = name.substring(1);
+        }
+        name = normalize(name);
+        boolean included = false;
+        for (Object pattern : includes) {
+            if (SelectorUtils.matchPath((String) pattern, name)) {
+                included = true;
+                break;
+            }
+        }
+        if (!included) {
+            return false;
+        }
+        for (Object pattern : excludes) {
+            if (SelectorUtils.matchPath((String) pattern, name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Names of the only entries that can be selected if no include
+     * pattern contains wildcards, null otherwise.
+     *
+     * <p>The names use forward slashes as separators and contain
+     * each name once, in the order the patterns have been
+     * specified.  Entries may be selected under slightly different
+     * names, see {@link #getVariants}.</p>
+     */
+    public List/*<String>*/ getLiteralNames() {
+        return literalNames;
+    }
+
+    /**
+     * Entry names that are selected by the given literal name.
+     *
+     * <p>Covers names that consistently use either forward slashes
+     * or backslashes as separators, with or without a trailing
+     * separator and - if stripAbsolutePathSpec is true - a leading
+     * one.</p>
+     */
+    public Collection/*<String>*/ getVariants(String literalName) {
+        Set/*<String>*/ variants = new LinkedHashSet();
+        String[] prefixes = stripAbsolutePathSpec
+            ? new String[] {"", "/", "\\"} : new String[] {""};
+        for (String prefix : prefixes) {
+            for (char sep : new char[] {'/', '\\'}) {
+                String name = prefix + literalName.replace('/', sep);
+                variants.add(name);
+                variants.add(name + sep);
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * Describes the patterns, equal selections have equal
+     * descriptions.
+     */
+    @Override
+    public String toString() {
+        return "includes=" + includes + ", excludes=" + excludes;
+    }
+
+    private static String normalize(String name) {
+        return name.replace('/', File.separatorChar)
+            .replace('\\', File.separatorChar);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Records which archive has been expanded into a directory and
+ * which files the expansion has produced.
+ *
+ * <p>The manifest is stored as a hidden properties file inside the
+ * destination directory, its name is derived from the archive's
+ * path so several archives can be expanded into the same
+ * directory.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ExtractionManifest {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String ARCHIVE = "archive";
+    private static final String SIZE = "size";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String SHA256 = "sha256";
+    private static final String OPTIONS = "options";
+    private static final String FILE_COUNT = "files";
+    private static final String FILE_PREFIX = "file.";
+
+    private final File manifestFile;
+    private final File archive;
+    private final File dir;
+    private final String options;
+    private final boolean hash;
+    private String archiveHash;
+    private final Set/*<String>*/ files = new LinkedHashSet();
+
+    /**
+     * @param archive the archive that is expanded
+     * @param dir the directory it is expanded into
+     * @param options a description of everything but the archive
+     * that influences which files get extracted
+     * @param hash whether to identify the archive by its SHA-256
+     * digest in addition to its size and modification time
+     */
+    public ExtractionManifest(File archive, File dir, String options,
+                              boolean hash) {
+        this.archive = archive.getAbsoluteFile();
+        this.dir = dir;
+        this.options = options;
+        this.hash = hash;
+        manifestFile = new File(dir, ".compress-antlib-"
+                                + hex(digest(this.archive.getPath()
+                                             .getBytes(StandardCharsets
+                                                       .UTF_8)))
+                                .substring(0, 16)
+                                + ".manifest");
+    }
+
+    /**
+     * Whether the manifest says the same archive has been expanded
+     * with the same options and all files it has produced are still
+     * present.
+     */
+    public boolean isCurrent() throws IOException {
+        if (!manifestFile.isFile()) {
+            return false;
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(manifestFile)) {
+            p.load(in);
+        }
+        if (!archive.getPath().equals(p.getProperty(ARCHIVE))
+            || !String.valueOf(archive.length()).equals(p.getProperty(SIZE))
+            || !String.valueOf(archive.lastModified())
+                .equals(p.getProperty(LAST_MODIFIED))
+            || !options.equals(p.getProperty(OPTIONS))
+            || hash && !getArchiveHash().equals(p.getProperty(SHA256))) {
+            return false;
+        }
+        int count;
+        try {
+            count = Integer.parseInt(p.getProperty(FILE_COUNT, "-1"));
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        if (count < 0) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            String name = p.getProperty(FILE_PREFIX + i);
+            if (name == null || !new File(dir, name).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes an existing manifest.
+     */
+    public void delete() {
+        manifestFile.delete();
+    }
+
+    /**
+     * Records a file produced by the expansion.
+     */
+    public synchronized void add(File file) {
+        String base = dir.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        files.add(path.startsWith(base) ? path.substring(base.length())
+                  : path);
+    }
+
+    /**
+     * Writes the manifest, creating the destination directory if no
+     * entry has been extracted into it.
+     */
+    public synchronized void write() throws IOException {
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("failed to create directory " + dir);
+        }
+        Properties p = new Properties();
+        p.setProperty(ARCHIVE, archive.getPath());
+        p.setProperty(SIZE, String.valueOf(archive.length()));
+        p.setProperty(LAST_MODIFIED, String.valueOf(archive.lastModified()));
+        p.setProperty(OPTIONS, options);
+        if (hash) {
+            p.setProperty(SHA256, getArchiveHash());
+        }
+        p.setProperty(FILE_COUNT, String.valueOf(files.size()));
+        int i = 0;
+        for (Object name : files) {
+            p.setProperty(FILE_PREFIX + i++, (String) name);
+        }
+        try (OutputStream out = new FileOutputStream(manifestFile)) {
+            p.store(out, "Expanded by the Apache Compress Antlib");
+        }
+    }
+
+    private String getArchiveHash() throws IOException {
+        if (archiveHash == null) {
+            MessageDigest md = newDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(archive)) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    md.update(buffer, 0, n);
+                }
+            }
+            archiveHash = hex(md.digest());
+        }
+        return archiveHash;
+    }
+
+    private static byte[] digest(byte[] data) {
+        return newDigest().digest(data);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Checkpoints inside of a gzip file that allow decompression to
+ * start in the middle of the file.
+ *
+ * <p>The index is stored in a file of its own together with size
+ * and modification time of the gzip file, an index that doesn't
+ * match the gzip file any longer is ignored.  Windows of the
+ * checkpoints are stored deflated.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class GzipIndex {
+    private static final int MAGIC = 0x41475a49; // "AGZI"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".gzidx";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long archiveSize;
+    private final long archiveLastModified;
+    private final boolean decompressConcatenated;
+    private final boolean complete;
+    private final List<Checkpoint> checkpoints;
+
+    /**
+     * @param archive the indexed gzip file
+     * @param decompressConcatenated whether the checkpoints have been
+     * recorded while reading all members
+     * @param complete whether the checkpoints have been recorded
+     * while reading the whole file
+     * @param checkpoints the checkpoints in the order of their
+     * offsets
+     */
+    public GzipIndex(File archive, boolean decompressConcatenated,
+                     boolean complete, List<Checkpoint> checkpoints) {
+        this(archive.length(), archive.lastModified(),
+             decompressConcatenated, complete, checkpoints);
+    }
+
+    private GzipIndex(long archiveSize, long archiveLastModified,
+                      boolean decompressConcatenated, boolean complete,
+                      List<Checkpoint> checkpoints) {
+        this.archiveSize = archiveSize;
+        this.archiveLastModified = archiveLastModified;
+        this.decompressConcatenated = decompressConcatenated;
+        this.complete = complete;
+        this.checkpoints =
+            Collections.unmodifiableList(new ArrayList<>(checkpoints));
+    }
+
+    /**
+     * The file an index of the given archive is stored in.
+     *
+     * @param archive the gzip file
+     * @param dir directory holding index files, if null the index
+     * is stored next to the archive
+     */
+    public static File getIndexFile(File archive, File dir) {
+        if (dir == null) {
+            return new File(archive.getPath() + SUFFIX);
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new BuildException(ex);
+        }
+        byte[] digest = md.digest(archive.getAbsolutePath()
+                                  .getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(2 * digest.length);
+        for (int i = 0; i < digest.length; i++) {
+            sb.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+        }
+        return new File(dir, sb.append(SUFFIX).toString());
+    }
+
+    /**
+     * Reads an index.
+     *
+     * @return null if the index doesn't exist, can't be read or
+     * doesn't match the archive
+     */
+    public static GzipIndex load(File indexFile, File archive,
+                                 boolean decompressConcatenated) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            boolean concatenated = in.readBoolean();
+            boolean complete = in.readBoolean();
+            if (size != archive.length()
+                || lastModified != archive.lastModified()
+                || concatenated != decompressConcatenated) {
+                return null;
+            }
+            int count = in.readInt();
+            List<Checkpoint> checkpoints = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                checkpoints.add(Checkpoint.read(in));
+            }
+            return new GzipIndex(size, lastModified, concatenated, complete,
+                                 checkpoints);
+        } catch (IOException ex) {
+            // corrupt, will be rebuilt
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it so
+     * concurrent readers never see a partially written index.
+     */
+    public void store(File indexFile) throws IOException {
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("failed to create directory " + dir);
+        }
+        File tmp = File.createTempFile("index", ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(archiveSize);
+                out.writeLong(archiveLastModified);
+                out.writeBoolean(decompressConcatenated);
+                out.writeBoolean(complete);
+                out.writeInt(checkpoints.size());
+                for (Checkpoint c : checkpoints) {
+                    c.write(out);
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), indexFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), indexFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Whether the index has been created for the given archive in its
+     * current state.
+     */
+    public boolean matches(File archive, boolean decompressConcatenated) {
+        return archiveSize == archive.length()
+            && archiveLastModified == archive.lastModified()
+            && this.decompressConcatenated == decompressConcatenated;
+    }
+
+    /**
+     * Whether the checkpoints have been recorded while reading the
+     * whole file.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The checkpoints in the order of their offsets.
+     */
+    public List<Checkpoint> getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * The last checkpoint at or before the given uncompressed offset.
+     *
+     * @return null if there is no such checkpoint
+     */
+    public Checkpoint find(long uncompressedOffset) {
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        Checkpoint found = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Checkpoint c = checkpoints.get(mid);
+            if (c.getUncompressedOffset() <= uncompressedOffset) {
+                found = c;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Opens a stream providing the uncompressed content of the
+     * archive starting at the given offset.
+     */
+    public InputStream open(File archive, long uncompressedOffset)
+        throws IOException {
+        Checkpoint c = find(uncompressedOffset);
+        FileInputStream fis = new FileInputStream(archive);
+        InputStream in;
+        try {
+            if (c == null) {
+                in = new CheckpointingGzipInputStream(fis,
+                                                      decompressConcatenated,
+                                                      0);
+            } else {
+                fis.getChannel().position(c.getBitOffset() >>> 3);
+                in = new CheckpointingGzipInputStream(fis, c,
+                                                      decompressConcatenated);
+            }
+            long toSkip = uncompressedOffset
+                - (c == null ? 0 : c.getUncompressedOffset());
+            if (IOUtils.skip(in, toSkip) != toSkip) {
+                throw new EOFException("offset " + uncompressedOffset
+                                       + " is beyond the end of "
+                                       + archive);
+            }
+        } catch (IOException | RuntimeException ex) {
+            fis.close();
+            throw ex;
+        }
+        return in;
+    }
+
+    /**
+     * A position inside of the deflated data that decompression can
+     * start from.
+     */
+    public static final class Checkpoint {
+        private final long bitOffset;
+        private final long uncompressedOffset;
+        private final byte[] window;
+
+        /**
+         * @param bitOffset position of the first bit of a deflate
+         * block inside of the gzip file
+         * @param uncompressedOffset offset inside of the uncompressed
+         * data the block starts at
+         * @param window up to 32 KiB of uncompressed data preceding
+         * the block inside of the same member
+         */
+        public Checkpoint(long bitOffset, long uncompressedOffset,
+                          byte[] window) {
+            this.bitOffset = bitOffset;
+            this.uncompressedOffset = uncompressedOffset;
+            this.window = window;
+        }
+
+        public long getBitOffset() {
+            return bitOffset;
+        }
+
+        public long getUncompressedOffset() {
+            return uncompressedOffset;
+        }
+
+        public byte[] getWindow() {
+            return window;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(bitOffset);
+            out.writeLong(uncompressedOffset);
+            out.writeInt(window.length);
+            Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                def.setInput(window);
+                def.finish();
+                byte[] buf = new byte[window.length + 64];
+                int n = 0;
+                while (!def.finished()) {
+                    if (n == buf.length) {
+                        buf = Arrays.copyOf(buf, 2 * buf.length);
+                    }
+                    n += def.deflate(buf, n, buf.length - n);
+                }
+                out.writeInt(n);
+                out.write(buf, 0, n);
+            } finally {
+                def.end();
+            }
+        }
+
+        private static Checkpoint read(DataInputStream in)
+            throws IOException {
+            long bitOffset = in.readLong();
+            long uncompressedOffset = in.readLong();
+            byte[] window = new byte[in.readInt()];
+            byte[] deflated = new byte[in.readInt()];
+            in.readFully(deflated);
+            Inflater inf = new Inflater(true);
+            try {
+                // nowrap mode needs an extra byte beyond the data
+                inf.setInput(Arrays.copyOf(deflated,
+                                                     deflated.length + 1));
+                int n = 0;
+                while (n < window.length && !inf.finished()) {
+                    int r = inf.inflate(window, n, window.length - n);
+                    if (r == 0 && inf.needsInput()) {
+                        break;
+                    }
+                    n += r;
+                }
+                if (n != window.length) {
+                    throw new IOException("corrupt gzip index");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("corrupt gzip index", ex);
+            } finally {
+                inf.end();
+            }
+            return new Checkpoint(bitOffset, uncompressedOffset, window);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.tools.ant.types.Resource;
+
+/**
+ * Guesses whether the content of a resource is already compressed
+ * so compressing it again would only waste time.
+ *
+ * <p>A resource is considered incompressible if its name has one of
+ * a list of extensions, if its content starts with the signature of
+ * a well-known compressed format or - if a sample size has been
+ * given - the Shannon entropy of the first bytes exceeds
+ * {@link #MAX_ENTROPY} bits per byte.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class IncompressibleContentDetector {
+    /**
+     * Extensions used if no explicit list has been given.
+     */
+    public static final String DEFAULT_EXTENSIONS =
+        "7z,bz2,cab,docx,ear,flac,gif,gz,jar,jpeg,jpg,lz4,lzma,mp3,mp4,"
+        + "odt,ogg,png,rar,tbz2,tgz,txz,war,webm,webp,xlsx,xz,zip,zst";
+
+    /**
+     * Entropy in bits per byte above which a sample is considered
+     * incompressible.
+     */
+    public static final double MAX_ENTROPY = 7.5;
+
+    private static final int[][] SIGNATURES = {
+        {0x1f, 0x8b}, // gzip
+        {'P', 'K', 3, 4}, // zip, jar and friends
+        {0x89, 'P', 'N', 'G'},
+        {0xff, 0xd8, 0xff}, // jpeg
+        {'G', 'I', 'F', '8'},
+        {'B', 'Z', 'h'}, // bzip2
+        {0xfd, '7', 'z', 'X', 'Z', 0}, // xz
+        {'7', 'z', 0xbc, 0xaf, 0x27, 0x1c},
+        {0x28, 0xb5, 0x2f, 0xfd}, // zstd
+        {0x04, 0x22, 0x4d, 0x18}, // lz4 frame
+        {'R', 'a', 'r', '!'},
+        {'O', 'g', 'g', 'S'},
+        {'f', 'L', 'a', 'C'},
+    };
+    private static final int SIGNATURE_LENGTH = 8;
+
+    private final Set<String> extensions = new HashSet<>();
+    private final int sampleSize;
+
+    /**
+     * @param extensions comma separated list of file name extensions
+     * without the leading dot, case is ignored
+     * @param sampleSize number of bytes to sample for the entropy
+     * check, 0 disables the check
+     */
+    public IncompressibleContentDetector(String extensions,
+                                         int sampleSize) {
+        StringTokenizer st = new StringTokenizer(extensions, ", ");
+        while (st.hasMoreTokens()) {
+            this.extensions.add(st.nextToken().toLowerCase(Locale.ENGLISH));
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Whether the resource is likely to be incompressible.
+     */
+    public boolean isIncompressible(Resource r) throws IOException {
+        if (hasIncompressibleExtension(r.getName())) {
+            return true;
+        }
+        byte[] head = new byte[Math.max(SIGNATURE_LENGTH, sampleSize)];
+        int len;
+        try (InputStream in = r.getInputStream()) {
+            len = IOUtils.readFully(in, head);
+        }
+        return hasSignature(head, len)
+            || (sampleSize > 0 && entropy(head, Math.min(len, sampleSize))
+                > MAX_ENTROPY);
+    }
+
+    private boolean hasIncompressibleExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'))
+            && extensions.contains(name.substring(dot + 1)
+                                   .toLowerCase(Locale.ENGLISH));
+    }
+
+    private static boolean hasSignature(byte[] head, int len) {
+        for (int i = 0; i < SIGNATURES.length; i++) {
+            int[] sig = SIGNATURES[i];
+            if (len >= sig.length) {
+                int j = 0;
+                while (j < sig.length && (head[j] & 0xff) == sig[j]) {
+                    j++;
+                }
+                if (j == sig.length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shannon entropy of the first len bytes in bits per byte.
+     */
+    static double entropy(byte[] data, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < len; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                double p = (double) counts[i] / len;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
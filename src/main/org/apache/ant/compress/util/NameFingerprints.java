@@ -0,0 +1,156 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A set of names that is looked up via a 64 bit fingerprint of each
+ * name.
+ *
+ * <p>The names themselves are stored UTF-8 encoded in a single
+ * growing byte array, so a name needs about as many bytes as it has
+ * characters plus thirty-two to sixty-four bytes for the hash table
+ * rather than a String object of its own.  A fingerprint matching
+ * the fingerprint of a name that has been added before is only
+ * treated as duplicate if the names are equal as well.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class NameFingerprints {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_NAMES_SIZE = 16 * 1024;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // zero marks an empty slot, the fingerprint of a name that hashes
+    // to zero is replaced by this one
+    private static final long ZERO_REPLACEMENT = 1;
+
+    private long[] slots = new long[INITIAL_CAPACITY];
+    // start of the slot's name inside of names
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private byte[] names = new byte[INITIAL_NAMES_SIZE];
+    private int namesSize = 0;
+    private int size = 0;
+
+    /**
+     * Adds a name.
+     *
+     * @return false if the name has been added before
+     */
+    public boolean add(String name) {
+        if ((size + 1) * 2 > slots.length) {
+            grow();
+        }
+        long fingerprint = fingerprint(name);
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        int mask = slots.length - 1;
+        int i = index(fingerprint, mask);
+        while (slots[i] != 0) {
+            if (slots[i] == fingerprint && isStored(i, encoded)) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = fingerprint;
+        offsets[i] = store(encoded);
+        lengths[i] = encoded.length;
+        size++;
+        return true;
+    }
+
+    /**
+     * The number of names that have been added.
+     */
+    public int size() {
+        return size;
+    }
+
+    private boolean isStored(int slot, byte[] encoded) {
+        if (lengths[slot] != encoded.length) {
+            return false;
+        }
+        int off = offsets[slot];
+        for (int j = 0; j < encoded.length; j++) {
+            if (names[off + j] != encoded[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int store(byte[] encoded) {
+        if (namesSize + encoded.length > names.length) {
+            long newSize = Math.max(2L * names.length,
+                                    (long) namesSize + encoded.length);
+            if (newSize > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("too many names");
+            }
+            names = Arrays.copyOf(names, (int) newSize);
+        }
+        int off = namesSize;
+        System.arraycopy(encoded, 0, names, off, encoded.length);
+        namesSize += encoded.length;
+        return off;
+    }
+
+    private void grow() {
+        long[] newSlots = new long[slots.length * 2];
+        int[] newOffsets = new int[newSlots.length];
+        int[] newLengths = new int[newSlots.length];
+        int mask = newSlots.length - 1;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != 0) {
+                int j = index(slots[i], mask);
+                while (newSlots[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                newSlots[j] = slots[i];
+                newOffsets[j] = offsets[i];
+                newLengths[j] = lengths[i];
+            }
+        }
+        slots = newSlots;
+        offsets = newOffsets;
+        lengths = newLengths;
+    }
+
+    private static int index(long fingerprint, int mask) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    /**
+     * FNV-1a over the characters of the name followed by a final
+     * mixing step so the lower bits used as index are well
+     * distributed.
+     */
+    private static long fingerprint(String name) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? ZERO_REPLACEMENT : h;
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+/**
+ * Reads a gzip file consisting of several members, inflating
+ * members concurrently.
+ *
+ * <p>Members that carry the BGZF "BC" extra field holding their size
+ * - as written by bgzip or {@link ParallelGzipOutputStream} - can be
+ * located without inflating them.  Such members are read in groups
+ * and inflated by a pool of threads, the data is returned in the
+ * order of the file.  Once a member without the field is found, it
+ * and all members following it are inflated by a {@link
+ * GzipCompressorInputStream} on the reading thread.</p>
+ *
+ * <p>All members are read, like a GzipCompressorInputStream with
+ * decompressConcatenated set to true does.</p>
+ *
+ * <p>Instances are not thread-safe, they are meant to be used by a
+ * single consumer.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ParallelGzipInputStream extends CompressorInputStream {
+    private static final int FIXED_HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    /**
+     * Deflate can't compress data by more than this factor, a bigger
+     * uncompressed size in the trailer can't be right.
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    private static final int MAX_GROUP_SIZE = 1024 * 1024;
+    private static final int PENDING_GROUPS_PER_THREAD = 2;
+
+    private final InputStream in;
+    private final int threads;
+    private final ExecutorService pool;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<>();
+    private final byte[] single = new byte[1];
+
+    private byte[] current = new byte[0];
+    private int pos = 0;
+    private boolean firstMember = true;
+    private boolean endOfMembers = false;
+    private byte[] sequentialHeader;
+    private InputStream sequential;
+    private boolean closed = false;
+
+    /**
+     * @param in the stream to read from, should be buffered
+     * @param threads number of threads inflating members
+     */
+    public ParallelGzipInputStream(InputStream in, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.in = in;
+        this.threads = threads;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gunzip-block");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream has been closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (pos == current.length) {
+            if (!nextGroup()) {
+                if (sequential == null) {
+                    return -1;
+                }
+                int n = sequential.read(b, off, len);
+                count(n);
+                return n;
+            }
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        count(n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (pos < current.length) {
+            return current.length - pos;
+        }
+        return sequential == null ? 0 : sequential.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pool.shutdownNow();
+        if (sequential != null) {
+            sequential.close();
+        } else {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the output of the next group of members the current data.
+     *
+     * @return false if there are no more groups that have been
+     * inflated by the pool
+     */
+    private boolean nextGroup() throws IOException {
+        while (!endOfMembers
+               && pending.size() < threads * PENDING_GROUPS_PER_THREAD) {
+            List<byte[]> group = readGroup();
+            if (group.isEmpty()) {
+                break;
+            }
+            pending.add(pool.submit(new Inflation(group)));
+        }
+        if (!pending.isEmpty()) {
+            current = await(pending.removeFirst());
+            pos = 0;
+            return true;
+        }
+        if (sequentialHeader != null && sequential == null) {
+            sequential = new GzipCompressorInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(
+                                            sequentialHeader), in), true);
+        }
+        return false;
+    }
+
+    /**
+     * Reads members that carry their size until a group is large
+     * enough, the end of input is reached or a member without size
+     * is found.
+     */
+    private List<byte[]> readGroup() throws IOException {
+        List<byte[]> group = new ArrayList<>();
+        int size = 0;
+        while (size < MAX_GROUP_SIZE && !endOfMembers) {
+            byte[] member = readMember();
+            if (member != null) {
+                group.add(member);
+                size += member.length;
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Reads a complete member if it carries its size.
+     *
+     * @return the member or null if the end of the input or a member
+     * without size has been reached
+     */
+    private byte[] readMember() throws IOException {
+        byte[] header = new byte[FIXED_HEADER_SIZE];
+        int n = IOUtils.readFully(in, header);
+        if (n == 0 && !firstMember) {
+            endOfMembers = true;
+            return null;
+        }
+        if (n < 2 || (header[0] & 0xff) != 0x1f
+            || (header[1] & 0xff) != 0x8b) {
+            throw new IOException(firstMember
+                                  ? "Input is not in the .gz format"
+                                  : "Garbage after a valid .gz stream");
+        }
+        firstMember = false;
+        int memberSize = -1;
+        byte[] extra = new byte[0];
+        if (n == FIXED_HEADER_SIZE && (header[3] & FEXTRA) != 0) {
+            extra = new byte[readShort(header, 10)];
+            if (IOUtils.readFully(in, extra) < extra.length) {
+                throw new EOFException("Truncated gzip header");
+            }
+            memberSize = findMemberSize(extra);
+        }
+        if (memberSize < 0) {
+            // hand over to the sequential stream including the bytes
+            // already consumed
+            endOfMembers = true;
+            sequentialHeader = new byte[n + extra.length];
+            System.arraycopy(header, 0, sequentialHeader, 0, n);
+            System.arraycopy(extra, 0, sequentialHeader, n, extra.length);
+            return null;
+        }
+        int headerLength = FIXED_HEADER_SIZE + extra.length;
+        if (memberSize < headerLength + TRAILER_SIZE) {
+            throw new IOException("Invalid BGZF block size " + memberSize);
+        }
+        byte[] member = new byte[memberSize];
+        System.arraycopy(header, 0, member, 0, FIXED_HEADER_SIZE);
+        System.arraycopy(extra, 0, member, FIXED_HEADER_SIZE, extra.length);
+        if (IOUtils.readFully(in, member, headerLength,
+                              memberSize - headerLength)
+            < memberSize - headerLength) {
+            throw new EOFException("Truncated gzip member");
+        }
+        return member;
+    }
+
+    /**
+     * The total size of the member as stored in the BGZF subfield, -1
+     * if there is no such subfield.
+     */
+    private static int findMemberSize(byte[] extra) {
+        int off = 0;
+        while (off + 4 <= extra.length) {
+            int length = readShort(extra, off + 2);
+            if (extra[off] == ParallelGzipOutputStream.SUBFIELD_ID1
+                && extra[off + 1] == ParallelGzipOutputStream.SUBFIELD_ID2
+                && length == 2 && off + 6 <= extra.length) {
+                return readShort(extra, off + 4) + 1;
+            }
+            off += 4 + length;
+        }
+        return -1;
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    private static long readInt(byte[] b, int off) {
+        return readShort(b, off) | ((long) readShort(b, off + 2) << 16);
+    }
+
+    private static byte[] await(Future<byte[]> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while"
+                                             + " decompressing");
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Inflates a group of complete members.
+     */
+    private static final class Inflation implements Callable<byte[]> {
+        private final List<byte[]> members;
+
+        private Inflation(List<byte[]> members) {
+            this.members = members;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Inflater inflater = new Inflater(true);
+            try {
+                for (byte[] member : members) {
+                    byte[] data = inflate(member, inflater);
+                    out.write(data, 0, data.length);
+                    inflater.reset();
+                }
+            } finally {
+                inflater.end();
+            }
+            return out.toByteArray();
+        }
+
+        private static byte[] inflate(byte[] member, Inflater inflater)
+            throws IOException {
+            int flags = member[3] & 0xff;
+            int off = FIXED_HEADER_SIZE + readShort(member, 10);
+            int trailer = member.length - TRAILER_SIZE;
+            if ((flags & FNAME) != 0) {
+                off = skipZeroTerminated(member, off, trailer);
+            }
+            if ((flags & FCOMMENT) != 0) {
+                off = skipZeroTerminated(member, off, trailer);
+            }
+            if ((flags & FHCRC) != 0) {
+                off += 2;
+            }
+            if (off > trailer) {
+                throw new IOException("Invalid gzip header");
+            }
+            long size = readInt(member, trailer + 4);
+            if (size > (long) (trailer - off + 1) * MAX_DEFLATE_RATIO) {
+                throw new IOException("Size of gzip member doesn't match"
+                                      + " its trailer");
+            }
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("gzip member too big");
+            }
+            byte[] data = new byte[(int) size];
+            // the trailer is passed as well, the Inflater may need
+            // input beyond the end of the deflated data in nowrap mode
+            inflater.setInput(member, off, member.length - off);
+            byte[] excess = new byte[1];
+            int n = 0;
+            try {
+                while (!inflater.finished()) {
+                    int r;
+                    if (n < data.length) {
+                        r = inflater.inflate(data, n, data.length - n);
+                        n += r;
+                    } else {
+                        r = inflater.inflate(excess);
+                        if (r > 0) {
+                            throw new IOException("Size of gzip member"
+                                                  + " doesn't match its"
+                                                  + " trailer");
+                        }
+                    }
+                    if (r == 0 && (inflater.needsInput()
+                                   || inflater.needsDictionary())) {
+                        throw new EOFException("Truncated gzip member");
+                    }
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt gzip member", ex);
+            }
+            if (n != data.length) {
+                throw new IOException("Size of gzip member doesn't match"
+                                      + " its trailer");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, n);
+            if (crc.getValue() != readInt(member, trailer)) {
+                throw new IOException("Gzip-compressed data is corrupt");
+            }
+            return data;
+        }
+
+        private static int skipZeroTerminated(byte[] b, int off, int end)
+            throws IOException {
+            while (off < end && b[off] != 0) {
+                off++;
+            }
+            if (off == end) {
+                throw new IOException("Invalid gzip header");
+            }
+            return off + 1;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.compress.compressors.CompressorOutputStream;
+
+/**
+ * Writes a gzip file consisting of independent members that are
+ * compressed concurrently.
+ *
+ * <p>The input is split into blocks of {@link #BLOCK_SIZE} bytes,
+ * each block is deflated into a gzip member of its own that carries
+ * the BGZF "BC" extra field holding the member's size, and an empty
+ * member marks the end of the file - the layout used by bgzip.  Any
+ * gzip implementation that supports concatenated members can read
+ * the result, readers that know about the extra field can locate
+ * members without inflating them.</p>
+ *
+ * <p>Blocks are compressed in groups by a pool of threads and
+ * written in the order of the input, so the output doesn't depend
+ * on the number of threads.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ParallelGzipOutputStream extends CompressorOutputStream {
+    /**
+     * Number of uncompressed bytes per member, chosen by BGZF so a
+     * member never exceeds 64 KiB even if its data can't be
+     * compressed.
+     */
+    public static final int BLOCK_SIZE = 0xff00;
+
+    /** Identifies the BGZF extra subfield. */
+    static final byte SUBFIELD_ID1 = 'B';
+    static final byte SUBFIELD_ID2 = 'C';
+
+    private static final int HEADER_SIZE = 18;
+    private static final int TRAILER_SIZE = 8;
+    private static final int MAX_MEMBER_SIZE = 0x10000;
+    private static final int BLOCKS_PER_TASK = 16;
+    private static final int PENDING_TASKS_PER_THREAD = 2;
+    private static final byte OS_UNKNOWN = (byte) 255;
+
+    private final OutputStream out;
+    private final int level;
+    private final int threads;
+    private final ExecutorService pool;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<>();
+    private final byte[] single = new byte[1];
+
+    private byte[] buffer = new byte[BLOCK_SIZE * BLOCKS_PER_TASK];
+    private int filled = 0;
+    private boolean closed = false;
+
+    /**
+     * @param out the stream to write to
+     * @param level the compression level
+     * @param threads number of threads compressing blocks
+     */
+    public ParallelGzipOutputStream(OutputStream out, int level,
+                                    int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.out = out;
+        this.level = level;
+        this.threads = threads;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gzip-block");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream has been closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - filled);
+            System.arraycopy(b, off, buffer, filled, n);
+            filled += n;
+            off += n;
+            len -= n;
+            if (filled == buffer.length) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Writes all complete groups of blocks, a partially filled group
+     * is kept so members keep their full size.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining data and the end of file marker, closes
+     * the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (filled > 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            out.write(compress(new byte[0], 0, 0,
+                               Deflater.DEFAULT_COMPRESSION));
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = buffer;
+        final int length = filled;
+        buffer = new byte[buffer.length];
+        filled = 0;
+        pending.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    ByteArrayOutputStream members =
+                        new ByteArrayOutputStream(length / 2);
+                    for (int off = 0; off < length; off += BLOCK_SIZE) {
+                        byte[] m = compress(data, off,
+                                            Math.min(BLOCK_SIZE,
+                                                     length - off),
+                                            level);
+                        members.write(m, 0, m.length);
+                    }
+                    return members.toByteArray();
+                }
+            }));
+        if (pending.size() > threads * PENDING_TASKS_PER_THREAD) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Future<byte[]> f = pending.removeFirst();
+        try {
+            out.write(f.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while"
+                                             + " compressing");
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Creates a complete gzip member holding the given data.
+     */
+    private static byte[] compress(byte[] data, int off, int len,
+                                   int level) {
+        byte[] member = new byte[MAX_MEMBER_SIZE];
+        Deflater deflater = new Deflater(level, true);
+        int size;
+        try {
+            deflater.setInput(data, off, len);
+            deflater.finish();
+            size = HEADER_SIZE;
+            while (!deflater.finished()) {
+                size += deflater.deflate(member, size,
+                                         MAX_MEMBER_SIZE - TRAILER_SIZE
+                                         - size);
+                if (size == MAX_MEMBER_SIZE - TRAILER_SIZE
+                    && !deflater.finished()) {
+                    // can't happen for blocks of BLOCK_SIZE
+                    throw new IllegalStateException("gzip member exceeds"
+                                                    + " 64 KiB");
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        size += TRAILER_SIZE;
+
+        member[0] = (byte) 0x1f;
+        member[1] = (byte) 0x8b;
+        member[2] = Deflater.DEFLATED;
+        member[3] = 4; // FEXTRA
+        // 4 - 7 MTIME stays 0
+        member[8] = (byte) (level == Deflater.BEST_COMPRESSION ? 2
+                            : level == Deflater.BEST_SPEED ? 4 : 0);
+        member[9] = OS_UNKNOWN;
+        writeShort(member, 10, 6); // XLEN
+        member[12] = SUBFIELD_ID1;
+        member[13] = SUBFIELD_ID2;
+        writeShort(member, 14, 2);
+        writeShort(member, 16, size - 1);
+        writeInt(member, size - TRAILER_SIZE, crc.getValue());
+        writeInt(member, size - 4, len);
+
+        byte[] result = new byte[size];
+        System.arraycopy(member, 0, result, 0, size);
+        return result;
+    }
+
+    private static void writeShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] b, int off, long value) {
+        writeShort(b, off, (int) value);
+        writeShort(b, off + 2, (int) (value >> 16));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * Decompresses the blocks of a multi-block .xz file concurrently.
+ *
+ * <p>The index at the end of each .xz stream records the size of
+ * every block, so the blocks can be located without decompressing
+ * the ones in front of them.  Blocks are decompressed by a pool of
+ * threads, each thread reading the file through a stream of its own,
+ * and are returned in the order of the file.  Only a bounded number
+ * of decompressed blocks is kept in memory.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ParallelXZInputStream extends CompressorInputStream {
+    /**
+     * Part of the maximum heap size the decompressed blocks may
+     * occupy.
+     */
+    private static final int MEMORY_SHARE = 4;
+
+    private static final int PENDING_TASKS_PER_THREAD = 2;
+
+    private final File file;
+    private final int maxPending;
+    private final long[] blockSizes;
+    private final ExecutorService pool;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<>();
+    private final List<SeekableXZInputStream> readers = new ArrayList<>();
+    private final ThreadLocal<SeekableXZInputStream> reader =
+        new ThreadLocal<>();
+    private final byte[] single = new byte[1];
+
+    private int nextBlock = 0;
+    private byte[] current = new byte[0];
+    private int currentPos = 0;
+    private boolean closed = false;
+    // guarded by readers
+    private boolean readersClosed = false;
+
+    private ParallelXZInputStream(File file, int threads, int maxPending,
+                                  long[] blockSizes) {
+        this.file = file;
+        this.maxPending = maxPending;
+        this.blockSizes = blockSizes;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "xz-block");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Creates a stream decompressing the given file concurrently if
+     * it consists of several blocks.
+     *
+     * <p>The number of blocks decompressed ahead of the reader is
+     * limited so that they use at most a quarter of the maximum heap
+     * size, fewer threads than requested may be busy if the blocks
+     * are big.</p>
+     *
+     * @param file the .xz file
+     * @param threads number of threads decompressing blocks
+     * @param decompressConcatenated whether to read all .xz streams
+     * of the file or only the first one
+     * @return null if the file contains only a single block, blocks
+     * that are too big to be held in memory or can't be indexed, the
+     * file should be read sequentially then
+     */
+    public static ParallelXZInputStream open(File file, int threads,
+                                             boolean decompressConcatenated) {
+        long[] sizes;
+        long largest = 0;
+        try (SeekableXZInputStream s =
+             new SeekableXZInputStream(new SeekableFileInputStream(file))) {
+            if (!decompressConcatenated && s.getStreamCount() > 1) {
+                return null;
+            }
+            sizes = new long[s.getBlockCount()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = s.getBlockSize(i);
+                largest = Math.max(largest, sizes[i]);
+            }
+        } catch (IOException ex) {
+            // let sequential reading report the problem
+            return null;
+        }
+        if (sizes.length < 2 || largest > Integer.MAX_VALUE - 8) {
+            return null;
+        }
+        // the block handed to the reader is held in addition to the
+        // pending ones
+        long fitting = Runtime.getRuntime().maxMemory() / MEMORY_SHARE
+            / Math.max(largest, 1) - 1;
+        if (fitting < 1) {
+            return null;
+        }
+        int maxPending = (int) Math.min(fitting,
+                                        threads * PENDING_TASKS_PER_THREAD);
+        return new ParallelXZInputStream(file, Math.min(threads, maxPending),
+                                         maxPending, sizes);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream has been closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (currentPos == current.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        count(n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pool.shutdownNow();
+        synchronized (readers) {
+            readersClosed = true;
+            for (SeekableXZInputStream s : readers) {
+                s.close();
+            }
+        }
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (nextBlock < blockSizes.length
+               && pending.size() < maxPending) {
+            final int block = nextBlock++;
+            pending.add(pool.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return decompress(block);
+                    }
+                }));
+        }
+        if (pending.isEmpty()) {
+            return false;
+        }
+        try {
+            current = pending.removeFirst().get();
+            currentPos = 0;
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while"
+                                             + " decompressing");
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IOException(t);
+        }
+    }
+
+    private byte[] decompress(int block) throws IOException {
+        SeekableXZInputStream s = reader.get();
+        if (s == null) {
+            s = new SeekableXZInputStream(new SeekableFileInputStream(file));
+            synchronized (readers) {
+                if (readersClosed) {
+                    s.close();
+                    throw new IOException("stream has been closed");
+                }
+                readers.add(s);
+            }
+            reader.set(s);
+        }
+        s.seekToBlock(block);
+        byte[] data = new byte[(int) blockSizes[block]];
+        // the decoder knows the block's size from the index and
+        // verifies its check once the last byte has been read
+        if (IOUtils.readFully(s, data) != data.length) {
+            throw new EOFException("Truncated xz block");
+        }
+        return data;
+    }
+}
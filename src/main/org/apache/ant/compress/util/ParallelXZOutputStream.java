@@ -0,0 +1,371 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.compressors.CompressorOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Writes a single .xz stream consisting of several blocks that are
+ * compressed concurrently.
+ *
+ * <p>The input is split into blocks of a fixed size, each block is
+ * compressed independently and the blocks are written in the order
+ * of the input followed by an index listing the compressed and
+ * uncompressed size of every block.  The result is a standard .xz
+ * file that can be read by any xz implementation, readers can use
+ * the index to locate blocks without decompressing the ones in front
+ * of them.</p>
+ *
+ * <p>XZ for Java doesn't provide a way to compress a single block,
+ * so every block is compressed into a .xz stream of its own and the
+ * block is written from the buffer holding that stream.</p>
+ *
+ * <p>Every thread uses an encoder of its own (about 94 MiB for the
+ * default preset) and every block waiting to be written holds its
+ * uncompressed and compressed data.  The number of threads and
+ * pending blocks is reduced so this uses at most half of the maximum
+ * heap size, at least one thread and one block are used, though.</p>
+ *
+ * <p>Instances are not thread-safe.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ParallelXZOutputStream extends CompressorOutputStream {
+    /**
+     * The block size used by xz for its default preset, three times
+     * the dictionary size.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 3 * LZMA2Options.DICT_SIZE_DEFAULT;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int FOOTER_SIZE = 12;
+    private static final int CHECK_TYPE = XZ.CHECK_CRC64;
+    private static final int PENDING_TASKS_PER_THREAD = 2;
+    /**
+     * Part of the maximum heap size the encoders and pending blocks
+     * may occupy.
+     */
+    private static final int MEMORY_SHARE = 2;
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int maxPending;
+    private final ExecutorService pool;
+    private final LinkedList<Future<Block>> pending = new LinkedList<>();
+    private final List<Block> index = new ArrayList<>();
+    private final byte[] single = new byte[1];
+
+    private byte[] buffer;
+    private int filled = 0;
+    private boolean closed = false;
+
+    /**
+     * @param out the stream to write to
+     * @param blockSize number of uncompressed bytes per block
+     * @param threads number of threads compressing blocks
+     */
+    public ParallelXZOutputStream(OutputStream out, int blockSize,
+                                  int threads) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        long budget = Runtime.getRuntime().maxMemory() / MEMORY_SHARE;
+        long encoder = new LZMA2Options().getEncoderMemoryUsage() * 1024L;
+        // the uncompressed block and - in the worst case - a
+        // compressed block of the same size
+        long perBlock = 2L * blockSize;
+        int usable = (int) Math.max(1, Math.min(threads, budget
+                                                / (encoder + perBlock)));
+        maxPending = (int) Math.max(usable,
+                                    Math.min(usable
+                                             * PENDING_TASKS_PER_THREAD,
+                                             (budget - usable * encoder)
+                                             / perBlock));
+        buffer = new byte[blockSize];
+        pool = Executors.newFixedThreadPool(usable, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "xz-block");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        out.write(streamHeader());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream has been closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - filled);
+            System.arraycopy(b, off, buffer, filled, n);
+            filled += n;
+            off += n;
+            len -= n;
+            if (filled == buffer.length) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Writes all complete blocks, a partially filled block is kept
+     * so blocks keep their full size.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining data, the index and the stream footer,
+     * closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (filled > 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            byte[] idx = index();
+            out.write(idx);
+            out.write(streamFooter(idx.length));
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+        final byte[] data = buffer;
+        final int length = filled;
+        buffer = closed ? null : new byte[blockSize];
+        filled = 0;
+        pending.add(pool.submit(new Callable<Block>() {
+                @Override
+                public Block call() throws IOException {
+                    return compress(data, length);
+                }
+            }));
+    }
+
+    private void writeNext() throws IOException {
+        Future<Block> f = pending.removeFirst();
+        try {
+            Block b = f.get();
+            out.write(b.data, b.offset, b.length);
+            index.add(b);
+            // the data is no longer needed, only the sizes are
+            b.data = null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while"
+                                             + " compressing");
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Compresses the data into a .xz stream holding a single block
+     * and locates the block inside of it.
+     */
+    private static Block compress(byte[] data, int length)
+        throws IOException {
+        StreamBuffer bos = new StreamBuffer(length / 2);
+        try (XZOutputStream xz = new XZOutputStream(bos, new LZMA2Options(),
+                                                    CHECK_TYPE)) {
+            xz.write(data, 0, length);
+        }
+        // avoid toByteArray's copy of the whole stream, only the
+        // block is written later
+        byte[] stream = bos.getBuffer();
+        int streamLength = bos.size();
+        int backwardSize =
+            (readInt(stream, streamLength - FOOTER_SIZE + 4) + 1) * 4;
+        int indexStart = streamLength - FOOTER_SIZE - backwardSize;
+        // index indicator, number of records, unpadded size,
+        // uncompressed size
+        int[] pos = new int[] { indexStart + 1 };
+        if (stream[indexStart] != 0 || readVli(stream, pos) != 1) {
+            throw new IOException("unexpected xz index");
+        }
+        Block b = new Block();
+        b.data = stream;
+        b.offset = HEADER_SIZE;
+        b.length = indexStart - HEADER_SIZE;
+        b.unpaddedSize = readVli(stream, pos);
+        b.uncompressedSize = readVli(stream, pos);
+        if (b.uncompressedSize != length) {
+            throw new IOException("unexpected xz index");
+        }
+        return b;
+    }
+
+    private static byte[] streamHeader() {
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(XZ.HEADER_MAGIC, 0, header, 0,
+                         XZ.HEADER_MAGIC.length);
+        header[7] = (byte) CHECK_TYPE;
+        writeCrc(header, 6, 2, 8);
+        return header;
+    }
+
+    private byte[] index() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(0);
+        writeVli(bos, index.size());
+        for (Block b : index) {
+            writeVli(bos, b.unpaddedSize);
+            writeVli(bos, b.uncompressedSize);
+        }
+        while (bos.size() % 4 != 0) {
+            bos.write(0);
+        }
+        byte[] idx = new byte[bos.size() + 4];
+        System.arraycopy(bos.toByteArray(), 0, idx, 0, bos.size());
+        writeCrc(idx, 0, bos.size(), bos.size());
+        return idx;
+    }
+
+    private static byte[] streamFooter(int indexSize) {
+        byte[] footer = new byte[FOOTER_SIZE];
+        writeInt(footer, 4, indexSize / 4 - 1);
+        footer[9] = (byte) CHECK_TYPE;
+        writeCrc(footer, 4, 6, 0);
+        System.arraycopy(XZ.FOOTER_MAGIC, 0, footer, 10,
+                         XZ.FOOTER_MAGIC.length);
+        return footer;
+    }
+
+    /**
+     * Writes the CRC32 of len bytes at off to target.
+     */
+    private static void writeCrc(byte[] b, int off, int len, int target) {
+        CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        writeInt(b, target, (int) crc.getValue());
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        for (int i = 0; i < 4; i++) {
+            b[off + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static int readInt(byte[] b, int off) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (b[off + i] & 0xff) << (8 * i);
+        }
+        return value;
+    }
+
+    private static void writeVli(ByteArrayOutputStream bos, long value) {
+        while (value >= 0x80) {
+            bos.write((int) (value | 0x80));
+            value >>>= 7;
+        }
+        bos.write((int) value);
+    }
+
+    private static long readVli(byte[] b, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        int c;
+        do {
+            c = b[pos[0]++] & 0xff;
+            value |= ((long) (c & 0x7f)) << shift;
+            shift += 7;
+        } while ((c & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Provides access to the buffer without copying it.
+     */
+    private static final class StreamBuffer extends ByteArrayOutputStream {
+        private StreamBuffer(int size) {
+            super(size);
+        }
+
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private static final class Block {
+        private byte[] data;
+        private int offset;
+        private int length;
+        private long unpaddedSize;
+        private long uncompressedSize;
+    }
+}
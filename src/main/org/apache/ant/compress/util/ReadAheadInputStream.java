@@ -0,0 +1,218 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream that reads its source on a separate thread.
+ *
+ * <p>The reading thread fills a fixed number of reusable buffers
+ * while the consumer is busy with the data it has received so far.
+ * If the source is a decompressing stream this allows decompression
+ * to overlap with whatever the consumer does with the data.</p>
+ *
+ * <p>Instances are not thread-safe, they are meant to be used by a
+ * single consumer.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ReadAheadInputStream extends InputStream {
+    /** Default size of a single buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream source;
+    private final BlockingQueue/*<Chunk>*/ free;
+    private final BlockingQueue/*<Chunk>*/ filled;
+    private final Thread producer;
+    private final byte[] single = new byte[1];
+
+    private Chunk current;
+    private int pos;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * @param source the stream to read from
+     * @param buffers number of buffers that can be filled ahead of
+     * the consumer
+     * @param bufferSize size of each buffer
+     */
+    public ReadAheadInputStream(InputStream source, int buffers,
+                                int bufferSize) {
+        if (buffers < 1) {
+            throw new IllegalArgumentException("buffers must be positive");
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.source = source;
+        // one more chunk than buffers is needed as the consumer holds
+        // one chunk while the producer may fill all others
+        free = new ArrayBlockingQueue(buffers + 1);
+        filled = new ArrayBlockingQueue(buffers + 2);
+        for (int i = 0; i <= buffers; i++) {
+            free.add(new Chunk(bufferSize));
+        }
+        producer = new Thread(new Producer(), "read-ahead");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current.data, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && ensureData()) {
+            int step = (int) Math.min(n - skipped, current.length - pos);
+            pos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null || closed ? 0 : current.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        producer.interrupt();
+        try {
+            producer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        source.close();
+    }
+
+    /**
+     * Makes sure current holds unread data.
+     * @return false if the end of the source has been reached
+     */
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("stream has been closed");
+        }
+        while (!eof && (current == null || pos >= current.length)) {
+            if (current != null) {
+                free.add(current);
+                current = null;
+            }
+            Chunk c;
+            try {
+                c = (Chunk) filled.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while"
+                                                 + " waiting for data");
+            }
+            if (c.error != null) {
+                eof = true;
+                throw c.error;
+            }
+            if (c.length < 0) {
+                eof = true;
+            } else {
+                current = c;
+                pos = 0;
+            }
+        }
+        return !eof;
+    }
+
+    private class Producer implements Runnable {
+        public void run() {
+            try {
+                while (true) {
+                    Chunk c = (Chunk) free.take();
+                    c.length = fill(c.data);
+                    filled.put(c);
+                    if (c.length < 0) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // consumer has closed the stream
+            } catch (Throwable t) {
+                // anything the source throws must reach the consumer,
+                // it would wait for the next chunk forever otherwise
+                Chunk c = new Chunk(0);
+                c.error = t instanceof IOException ? (IOException) t
+                    : new IOException(t);
+                filled.offer(c);
+            }
+        }
+
+        /**
+         * Reads until the buffer is full or the source is exhausted.
+         * @return number of bytes read or -1 if the source had
+         * already been exhausted
+         */
+        private int fill(byte[] data) throws IOException {
+            int total = 0;
+            while (total < data.length) {
+                int n = source.read(data, total, data.length - total);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            return total == 0 ? -1 : total;
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private int length;
+        private IOException error;
+
+        private Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A buffered InputStream reading a file that can seek over data its
+ * consumer is going to skip anyway.
+ *
+ * <p>Archive streams skip the data of an entry by reading or
+ * skipping it when the next entry is requested, depending on the
+ * version of Commons Compress this may read all the data.  {@link
+ * #discard} moves the file position behind the data immediately and
+ * makes the stream pretend to return the discarded bytes to the
+ * next reads or skips without touching the file or the caller's
+ * buffer.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class SeekableFileInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] single = new byte[1];
+    private long discarded = 0;
+
+    public SeekableFileInputStream(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        buffer.flip();
+    }
+
+    /**
+     * Seeks over the next <code>n</code> bytes, the following reads
+     * or skips of up to that many bytes return without any data
+     * being read.
+     *
+     * <p>Never moves beyond the end of the file, so truncated
+     * archives are still detected by the consumer.</p>
+     */
+    public void discard(long n) throws IOException {
+        long rest = n;
+        int fromBuffer = (int) Math.min(rest, buffer.remaining());
+        buffer.position(buffer.position() + fromBuffer);
+        rest -= fromBuffer;
+        long seek = Math.min(rest, channel.size() - channel.position());
+        channel.position(channel.position() + seek);
+        discarded += fromBuffer + seek;
+    }
+
+    /**
+     * The channel this stream reads from.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * The position inside the file of the next byte this stream is
+     * going to return.
+     */
+    public long getPosition() throws IOException {
+        return channel.position() - buffer.remaining() - discarded;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (discarded > 0) {
+            // the caller is skipping data we've already seeked over
+            int n = (int) Math.min(len, discarded);
+            discarded -= n;
+            return n;
+        }
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int n = channel.read(buffer);
+            buffer.flip();
+            if (n <= 0) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (discarded > 0) {
+            long s = Math.min(n, discarded);
+            discarded -= s;
+            return s;
+        }
+        long fromBuffer = Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + (int) fromBuffer);
+        long seek = Math.min(n - fromBuffer,
+                             channel.size() - channel.position());
+        channel.position(channel.position() + seek);
+        return fromBuffer + seek;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (discarded > 0) {
+            return (int) Math.min(discarded, Integer.MAX_VALUE);
+        }
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Reads the entries of an archive that can only be read sequentially
+ * using a single stream.
+ *
+ * <p>As long as entries are requested in the order they appear
+ * inside the archive, each entry is read exactly once.  If an entry
+ * is requested that has already been passed, the archive is re-opened
+ * from the start.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class SequentialArchiveReader implements Closeable {
+    private final ArchiveStreamFactory factory;
+    private final Resource archive;
+    private final String encoding;
+    private ArchiveInputStream current;
+    private int rewinds = 0;
+
+    /**
+     * @param factory creates the stream to read the archive
+     * @param archive the archive to read
+     * @param encoding the encoding of the entry names
+     */
+    public SequentialArchiveReader(ArchiveStreamFactory factory,
+                                   Resource archive, String encoding) {
+        this.factory = factory;
+        this.archive = archive;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Positions the archive at the next entry of the given name and
+     * returns a stream for its content.
+     *
+     * <p>Closing the returned stream doesn't close the archive.</p>
+     */
+    public InputStream getInputStream(String name) throws IOException {
+        if (current != null && advanceTo(name)) {
+            return new NonClosingInputStream(current);
+        }
+        if (current != null) {
+            rewinds++;
+        }
+        close();
+        current = StreamHelper.getInputStream(factory, archive, encoding);
+        if (current == null) {
+            current =
+                factory.getArchiveStream(new BufferedInputStream(archive
+                                                                 .getInputStream()),
+                                         encoding);
+        }
+        if (advanceTo(name)) {
+            return new NonClosingInputStream(current);
+        }
+        throw new BuildException("no entry " + name + " in " + archive);
+    }
+
+    /**
+     * How often the archive had to be re-opened because entries have
+     * not been requested in archive order.
+     */
+    public int getRewinds() {
+        return rewinds;
+    }
+
+    @Override
+    public void close() {
+        FileUtils.close(current);
+        current = null;
+    }
+
+    private boolean advanceTo(String name) throws IOException {
+        ArchiveEntry ae = null;
+        while ((ae = current.getNextEntry()) != null) {
+            if (ae.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class NonClosingInputStream extends FilterInputStream {
+        private NonClosingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+            // the archive stream is closed by the reader
+        }
+    }
+}
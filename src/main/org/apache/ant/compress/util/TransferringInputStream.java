@@ -0,0 +1,112 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An InputStream that copies a region of a file straight into a
+ * target file when it is read for the first time and then signals
+ * the end of the stream.
+ *
+ * <p>Meant to be passed to code that opens the target file and then
+ * copies what it reads from the stream, like Ant's Expand task does.
+ * As nothing is read from the stream the target stays empty and the
+ * data is transferred by {@link FileChannel#transferTo} instead,
+ * avoiding copies in user space.  If the data is never requested -
+ * because the target is up to date, for example - nothing is
+ * transferred.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class TransferringInputStream extends InputStream {
+    private final FileChannel source;
+    private final long offset;
+    private final long size;
+    private final File target;
+    private boolean transferred = false;
+
+    /**
+     * @param source channel to transfer from, is not closed by this
+     * stream
+     * @param offset position of the data inside the source
+     * @param size number of bytes to transfer
+     * @param target the file that will be opened for writing before
+     * this stream is read
+     */
+    public TransferringInputStream(FileChannel source, long offset,
+                                   long size, File target) {
+        this.source = source;
+        this.offset = offset;
+        this.size = size;
+        this.target = target;
+    }
+
+    @Override
+    public int read() throws IOException {
+        transfer();
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        transfer();
+        return -1;
+    }
+
+    /**
+     * Transfers the data to the given channel instead of the target
+     * file, afterwards the stream is at its end.
+     *
+     * @return the number of bytes transferred, 0 if the data has
+     * already been transferred
+     */
+    public long transferTo(FileChannel out) throws IOException {
+        if (transferred) {
+            return 0;
+        }
+        transferred = true;
+        long done = 0;
+        while (done < size) {
+            long n = source.transferTo(offset + done, size - done, out);
+            if (n <= 0) {
+                throw new EOFException("Truncated archive, expected "
+                                       + size + " bytes for " + target
+                                       + " but got " + done);
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    private void transfer() throws IOException {
+        if (transferred) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(target.toPath(),
+                                                StandardOpenOption.WRITE)) {
+            transferTo(out);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.ant.compress.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reads and writes the central directory of a ZIP archive without
+ * touching the data of the entries.
+ *
+ * <p>Only single-disk archives are supported.</p>
+ *
+ * @since Apache Compress Antlib 1.6
+ */
+public class ZipCentralDirectory {
+    private static final int LFH_SIG = 0x04034b50;
+    private static final int CFH_SIG = 0x02014b50;
+    private static final int DD_SIG = 0x08074b50;
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int LFH_LENGTH = 30;
+    private static final int CFH_LENGTH = 46;
+    private static final int EOCD_LENGTH = 22;
+    private static final int ZIP64_EOCD_LENGTH = 56;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int ZIP64_VERSION = 45;
+    private static final int DATA_DESCRIPTOR_FLAG = 8;
+
+    private final List<Record> records;
+    private final long offset;
+
+    private ZipCentralDirectory(List<Record> records, long offset) {
+        this.records = records;
+        this.offset = offset;
+    }
+
+    /**
+     * Reads the central directory of the given archive.
+     */
+    public static ZipCentralDirectory read(File archive) throws IOException {
+        try (FileChannel ch = FileChannel.open(archive.toPath(),
+                                               StandardOpenOption.READ)) {
+            return read(ch);
+        }
+    }
+
+    /**
+     * Reads the central directory of the given archive.
+     */
+    public static ZipCentralDirectory read(FileChannel ch) throws IOException {
+        long length = ch.size();
+        int tailLength = (int) Math.min(length,
+                                        EOCD_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = readFully(ch, length - tailLength, tailLength);
+        int eocd = -1;
+        for (int i = tailLength - EOCD_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("archive is not a ZIP archive");
+        }
+        long entries = tail.getShort(eocd + 10) & 0xFFFF;
+        long cdSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cdOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        long eocdPos = length - tailLength + eocd;
+        if ((entries == ZIP64_MAGIC_SHORT || cdSize == ZIP64_MAGIC
+             || cdOffset == ZIP64_MAGIC)
+            && eocdPos >= ZIP64_LOCATOR_LENGTH) {
+            ByteBuffer locator = readFully(ch, eocdPos - ZIP64_LOCATOR_LENGTH,
+                                           ZIP64_LOCATOR_LENGTH);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                ByteBuffer z64 = readFully(ch, locator.getLong(8),
+                                           ZIP64_EOCD_LENGTH);
+                if (z64.getInt(0) != ZIP64_EOCD_SIG) {
+                    throw new ZipException("corrupt Zip64 end of central"
+                                           + " directory record");
+                }
+                entries = z64.getLong(32);
+                cdSize = z64.getLong(40);
+                cdOffset = z64.getLong(48);
+            }
+        }
+        if (cdSize > Integer.MAX_VALUE) {
+            throw new ZipException("central directory is too big");
+        }
+        ByteBuffer cd = readFully(ch, cdOffset, (int) cdSize);
+        List<Record> records = new ArrayList<>();
+        int pos = 0;
+        while (pos + CFH_LENGTH <= cdSize && cd.getInt(pos) == CFH_SIG) {
+            Record r = new Record(cd, pos);
+            records.add(r);
+            pos += r.getLength();
+        }
+        if (records.size() != entries) {
+            throw new ZipException("expected " + entries + " entries in"
+                                   + " central directory but found "
+                                   + records.size());
+        }
+        return new ZipCentralDirectory(records, cdOffset);
+    }
+
+    /**
+     * The records of the central directory in the order they have
+     * been found.
+     */
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Where the central directory starts, this is also where the
+     * data of all entries ends.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Writes the end of central directory record - and the Zip64
+     * variants if required.
+     *
+     * @param out the stream to write to
+     * @param entries the number of central directory records
+     * @param cdOffset where the central directory starts
+     * @param cdSize the length of the central directory
+     * @param comment the archive comment
+     * @param forceZip64 whether to write Zip64 records even if not
+     * required
+     */
+    public static void writeEnd(OutputStream out, long entries,
+                                long cdOffset, long cdSize, byte[] comment,
+                                boolean forceZip64)
+        throws IOException {
+        if (forceZip64 || needsZip64(entries, cdOffset, cdSize)) {
+            ByteBuffer z64 = allocate(ZIP64_EOCD_LENGTH + ZIP64_LOCATOR_LENGTH);
+            z64.putInt(ZIP64_EOCD_SIG);
+            z64.putLong(ZIP64_EOCD_LENGTH - 12);
+            z64.putShort((short) ZIP64_VERSION);
+            z64.putShort((short) ZIP64_VERSION);
+            z64.putInt(0);
+            z64.putInt(0);
+            z64.putLong(entries);
+            z64.putLong(entries);
+            z64.putLong(cdSize);
+            z64.putLong(cdOffset);
+            z64.putInt(ZIP64_LOCATOR_SIG);
+            z64.putInt(0);
+            z64.putLong(cdOffset + cdSize);
+            z64.putInt(1);
+            out.write(z64.array());
+        }
+        ByteBuffer eocd = allocate(EOCD_LENGTH + comment.length);
+        eocd.putInt(EOCD_SIG);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) Math.min(entries, ZIP64_MAGIC_SHORT));
+        eocd.putShort((short) Math.min(entries, ZIP64_MAGIC_SHORT));
+        eocd.putInt((int) Math.min(cdSize, ZIP64_MAGIC));
+        eocd.putInt((int) Math.min(cdOffset, ZIP64_MAGIC));
+        eocd.putShort((short) comment.length);
+        eocd.put(comment);
+        out.write(eocd.array());
+    }
+
+    /**
+     * Whether Zip64 end of central directory records are required.
+     */
+    public static boolean needsZip64(long entries, long cdOffset,
+                                     long cdSize) {
+        return entries >= ZIP64_MAGIC_SHORT || cdOffset >= ZIP64_MAGIC
+            || cdSize >= ZIP64_MAGIC;
+    }
+
+    private static ByteBuffer allocate(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long pos, int length)
+        throws IOException {
+        ByteBuffer b = allocate(length);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * A single record of the central directory.
+     */
+    public static class Record {
+        private final byte[] header;
+        private final byte[] name;
+        private final byte[] extra;
+        private final byte[] comment;
+        private long size;
+        private long compressedSize;
+        private long localHeaderOffset;
+        private boolean zip64;
+
+        private Record(ByteBuffer cd, int pos) {
+            header = new byte[CFH_LENGTH];
+            name = new byte[cd.getShort(pos + 28) & 0xFFFF];
+            byte[] rawExtra = new byte[cd.getShort(pos + 30) & 0xFFFF];
+            comment = new byte[cd.getShort(pos + 32) & 0xFFFF];
+            cd.position(pos);
+            cd.get(header).get(name).get(rawExtra).get(comment);
+            compressedSize = cd.getInt(pos + 20) & ZIP64_MAGIC;
+            size = cd.getInt(pos + 24) & ZIP64_MAGIC;
+            localHeaderOffset = cd.getInt(pos + 42) & ZIP64_MAGIC;
+            extra = parseExtra(rawExtra);
+        }
+
+        /**
+         * Reads the values of the Zip64 extended information extra
+         * field and returns all other extra fields.
+         */
+        private byte[] parseExtra(byte[] rawExtra) {
+            ByteBuffer b = ByteBuffer.wrap(rawExtra)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer others = allocate(rawExtra.length);
+            while (b.remaining() >= 4) {
+                int id = b.getShort() & 0xFFFF;
+                int len = Math.min(b.getShort() & 0xFFFF, b.remaining());
+                if (id == ZIP64_EXTRA_ID) {
+                    zip64 = true;
+                    ByteBuffer z = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+                    z.limit(len);
+                    if (size == ZIP64_MAGIC && z.remaining() >= 8) {
+                        size = z.getLong();
+                    }
+                    if (compressedSize == ZIP64_MAGIC && z.remaining() >= 8) {
+                        compressedSize = z.getLong();
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC
+                        && z.remaining() >= 8) {
+                        localHeaderOffset = z.getLong();
+                    }
+                } else {
+                    others.putShort((short) id);
+                    others.putShort((short) len);
+                    others.put(rawExtra, b.position(), len);
+                }
+                b.position(b.position() + len);
+            }
+            byte[] result = new byte[others.position()];
+            System.arraycopy(others.array(), 0, result, 0, result.length);
+            return result;
+        }
+
+        /**
+         * The raw bytes of the entry's name.
+         */
+        public byte[] getRawName() {
+            return name.clone();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        /**
+         * The length of this record as it has been read.
+         */
+        private int getLength() {
+            int extraLength = ((header[31] & 0xFF) << 8) | (header[30] & 0xFF);
+            return CFH_LENGTH + name.length + extraLength + comment.length;
+        }
+
+        /**
+         * The number of bytes occupied by the entry's local file
+         * header, data and data descriptor.
+         */
+        public long getEntryLength(FileChannel ch) throws IOException {
+            ByteBuffer lfh = readFully(ch, localHeaderOffset, LFH_LENGTH);
+            if (lfh.getInt(0) != LFH_SIG) {
+                throw new ZipException("no local file header at offset "
+                                       + localHeaderOffset);
+            }
+            long length = LFH_LENGTH + (lfh.getShort(26) & 0xFFFF)
+                + (lfh.getShort(28) & 0xFFFF) + compressedSize;
+            int flags = lfh.getShort(6) & 0xFFFF;
+            if ((flags & DATA_DESCRIPTOR_FLAG) != 0) {
+                long ddPos = localHeaderOffset + length;
+                if (ddPos + 4 <= ch.size()
+                    && readFully(ch, ddPos, 4).getInt(0) == DD_SIG) {
+                    length += 4;
+                }
+                length += zip64 ? 20 : 12;
+            }
+            return length;
+        }
+
+        /**
+         * Writes the record moving the local file header by the given
+         * number of bytes.
+         *
+         * @return the number of bytes written
+         */
+        public int write(OutputStream out, long offsetDelta)
+            throws IOException {
+            long lho = localHeaderOffset + offsetDelta;
+            boolean z64Size = size >= ZIP64_MAGIC;
+            boolean z64Csize = compressedSize >= ZIP64_MAGIC;
+            boolean z64Offset = lho >= ZIP64_MAGIC;
+            int z64Length = 8 * ((z64Size ? 1 : 0) + (z64Csize ? 1 : 0)
+                                 + (z64Offset ? 1 : 0));
+            int extraLength = extra.length + (z64Length > 0 ? 4 + z64Length : 0);
+            ByteBuffer b = allocate(CFH_LENGTH + name.length + extraLength
+                                    + comment.length);
+            b.put(header);
+            if (z64Length > 0) {
+                int needed = b.getShort(6) & 0xFFFF;
+                b.putShort(6, (short) Math.max(needed, ZIP64_VERSION));
+            }
+            b.putInt(20, (int) (z64Csize ? ZIP64_MAGIC : compressedSize));
+            b.putInt(24, (int) (z64Size ? ZIP64_MAGIC : size));
+            b.putShort(30, (short) extraLength);
+            b.putShort(34, (short) 0);
+            b.putInt(42, (int) (z64Offset ? ZIP64_MAGIC : lho));
+            b.put(name);
+            if (z64Length > 0) {
+                b.putShort((short) ZIP64_EXTRA_ID);
+                b.putShort((short) z64Length);
+                if (z64Size) {
+                    b.putLong(size);
+                }
+                if (z64Csize) {
+                    b.putLong(compressedSize);
+                }
+                if (z64Offset) {
+                    b.putLong(lho);
+                }
+            }
+            b.put(extra);
+            b.put(comment);
+            out.write(b.array());
+            return b.capacity();
+        }
+    }
+}